@@ -36,7 +36,21 @@ val run by tasks.getting(JavaExec::class) {
 tasks {
     test {
         maxHeapSize = "128m"
-        useJUnitPlatform()
+        useJUnitPlatform {
+            excludeTags("benchmark")
+        }
+    }
+
+    register<Test>("benchmark") {
+        description = "Runs the benchmarks excluded from the tests."
+        group = "verification"
+        testClassesDirs = sourceSets["test"].output.classesDirs
+        classpath = sourceSets["test"].runtimeClasspath
+        maxHeapSize = "128m"
+        testLogging.showStandardStreams = true
+        useJUnitPlatform {
+            includeTags("benchmark")
+        }
     }
 }
 
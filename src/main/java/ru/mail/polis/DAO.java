@@ -22,7 +22,10 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -84,6 +87,24 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Obtains values of the given keys at once.
+     *
+     * @return values in the order of the keys, null for keys without a record
+     */
+    @NotNull
+    default List<ByteBuffer> multiGet(@NotNull Collection<ByteBuffer> keys) throws IOException {
+        final List<ByteBuffer> result = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            try {
+                result.add(get(key));
+            } catch (NoSuchElementException e) {
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -96,6 +117,23 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values of the keys starting at "from" key (inclusive) until given "to" key (exclusive),
+     * null "to" key means up to the end.
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Iterator<Record> records = range(from, to);
+        while (records.hasNext()) {
+            keys.add(records.next().getKey());
+        }
+        for (final ByteBuffer key : keys) {
+            remove(key);
+        }
+    }
+
     /**
      * Perform compaction
      */
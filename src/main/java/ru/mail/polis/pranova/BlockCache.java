@@ -0,0 +1,368 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of table blocks kept off heap, shared by the tables of a storage.
+ *
+ * <p>Blocks are evicted by segmented LRU: a block enters the probationary segment and moves to the protected
+ * one when it's read again, so a scan reading every block once evicts only probationary blocks. The protected
+ * segment takes up to 80% of the capacity, its least recently used blocks fall back to probation.
+ *
+ * <p>Decompressed blocks and blocks read without mapping the tables are cached, uncompressed blocks of mapped
+ * tables are read in place. The cache is split into shards with their own locks.
+ *
+ * <p>The memory is allocated once: every shard splits its share of the capacity into slabs of up to 1MB, and
+ * a block takes a slot of a power of two size carved out of a slab by a buddy allocator. Evicted slots are
+ * merged with their free buddies and reused. A lookup pins the slot and reads the block right in the slab,
+ * a slot evicted while pinned is reused once it's unpinned. Blocks kept by the reader are copied out of
+ * the slab. Blocks larger than a slab are not cached.
+ */
+public final class BlockCache {
+    private static final int SHARDS = 16;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MIN_SLOT_SIZE = 1024;
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+    private final long capacity;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a cache, the memory of the cache is allocated right away.
+     *
+     * @param capacity total size of the cached blocks in bytes, rounded down to whole slabs
+     */
+    public BlockCache(final long capacity) {
+        if (capacity < SHARDS * MIN_SLOT_SIZE) {
+            throw new IllegalArgumentException("Block cache capacity is too small: " + capacity);
+        }
+        this.capacity = capacity;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacity / SHARDS);
+        }
+    }
+
+    /**
+     * Get a copy of a cached block to keep.
+     *
+     * @param table id of the table
+     * @param block number of the block in the table
+     * @return copy of the block or null if it's not cached
+     */
+    @Nullable
+    ByteBuffer get(final int table, final int block) {
+        final long key = key(table, block);
+        final ByteBuffer result = shard(key).get(key);
+        count(result != null);
+        return result;
+    }
+
+    /**
+     * Pin a cached block to read it in place, its slot is not reused until {@link #unpin(Slot)}.
+     *
+     * @param table id of the table
+     * @param block number of the block in the table
+     * @return slot of the block or null if it's not cached
+     */
+    @Nullable
+    Slot pin(final int table, final int block) {
+        final long key = key(table, block);
+        final Slot result = shard(key).pin(key);
+        count(result != null);
+        return result;
+    }
+
+    /**
+     * Let the slot of a pinned block be reused if the block is evicted.
+     *
+     * @param slot returned by {@link #pin(int, int)}
+     */
+    void unpin(@NotNull final Slot slot) {
+        shard(slot.key).unpin(slot);
+    }
+
+    private void count(final boolean hit) {
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Cache a block read from a table, the block is copied to a slot of the cache.
+     *
+     * @param table id of the table
+     * @param block number of the block in the table
+     * @param data  contents of the block, may be reused afterwards
+     */
+    void put(final int table, final int block, @NotNull final ByteBuffer data) {
+        final long key = key(table, block);
+        evictions.add(shard(key).put(key, data));
+    }
+
+    private static long key(final int table, final int block) {
+        return (long) table << Integer.SIZE | block & 0xFFFFFFFFL;
+    }
+
+    @NotNull
+    private Shard shard(final long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return shards[(int) (hash >>> (Long.SIZE - 4)) & (SHARDS - 1)];
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the size of the cached blocks.
+     *
+     * @return bytes of the slots currently taken
+     */
+    public long getSize() {
+        long result = 0;
+        for (final Shard shard : shards) {
+            result += shard.size();
+        }
+        return result;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Block in a slot of a slab.
+     */
+    static final class Slot {
+        private final long key;
+        private final long address;
+        private final int order;
+        // Read-only view of the block in the slab
+        private final ByteBuffer data;
+        // Guarded by the shard
+        private int pins;
+        private boolean evicted;
+
+        Slot(final long key, final long address, final int order, @NotNull final ByteBuffer data) {
+            this.key = key;
+            this.address = address;
+            this.order = order;
+            this.data = data;
+        }
+
+        /**
+         * Get the block, valid while the slot is pinned.
+         *
+         * @return read-only block shared by the readers, not to be moved
+         */
+        @NotNull
+        ByteBuffer data() {
+            return data;
+        }
+
+        int capacity() {
+            return MIN_SLOT_SIZE << order;
+        }
+    }
+
+    private static final class Shard {
+        private final long protectedCapacity;
+        private final ByteBuffer[] slabs;
+        private final int slabSize;
+        // Free slots by order, slot addresses are offsets in the slabs laid one after another
+        private final List<Set<Long>> free = new ArrayList<>();
+        // Least recently used blocks first
+        private final LinkedHashMap<Long, Slot> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<Long, Slot> protectedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationSize;
+        private long protectedSize;
+
+        Shard(final long capacity) {
+            this.slabSize = (int) Math.min(MAX_SLAB_SIZE, Long.highestOneBit(capacity));
+            this.slabs = new ByteBuffer[(int) (capacity / slabSize)];
+            this.protectedCapacity = (long) slabs.length * slabSize * PROTECTED_PERCENT / 100;
+            final int maxOrder = Integer.numberOfTrailingZeros(slabSize / MIN_SLOT_SIZE);
+            for (int order = 0; order <= maxOrder; order++) {
+                free.add(new HashSet<>());
+            }
+            for (int i = 0; i < slabs.length; i++) {
+                slabs[i] = ByteBuffer.allocateDirect(slabSize);
+                free.get(maxOrder).add((long) i * slabSize);
+            }
+        }
+
+        @Nullable
+        synchronized ByteBuffer get(final long key) {
+            final Slot result = find(key);
+            if (result == null) {
+                return null;
+            }
+            // Copied while the slot can't be reused
+            final ByteBuffer copy = ByteBuffer.allocate(result.data.remaining());
+            copy.put(result.data.duplicate());
+            copy.flip();
+            return copy;
+        }
+
+        @Nullable
+        synchronized Slot pin(final long key) {
+            final Slot result = find(key);
+            if (result != null) {
+                result.pins++;
+            }
+            return result;
+        }
+
+        synchronized void unpin(@NotNull final Slot slot) {
+            assert slot.pins > 0;
+            slot.pins--;
+            if (slot.pins == 0 && slot.evicted) {
+                release(slot.address, slot.order);
+            }
+        }
+
+        // Finds the block and marks it used
+        @Nullable
+        private Slot find(final long key) {
+            Slot result = protectedBlocks.get(key);
+            if (result == null) {
+                result = probation.remove(key);
+                if (result == null) {
+                    return null;
+                }
+                probationSize -= result.capacity();
+                protectedBlocks.put(key, result);
+                protectedSize += result.capacity();
+                // The protected segment overflows to probation
+                final Iterator<Map.Entry<Long, Slot>> eldest = protectedBlocks.entrySet().iterator();
+                while (protectedSize > protectedCapacity) {
+                    final Map.Entry<Long, Slot> demoted = eldest.next();
+                    eldest.remove();
+                    protectedSize -= demoted.getValue().capacity();
+                    probation.put(demoted.getKey(), demoted.getValue());
+                    probationSize += demoted.getValue().capacity();
+                }
+            }
+            return result;
+        }
+
+        // Returns the number of evicted blocks
+        synchronized int put(final long key, @NotNull final ByteBuffer data) {
+            if (protectedBlocks.containsKey(key) || probation.containsKey(key)) {
+                // Loaded concurrently
+                return 0;
+            }
+            if (data.remaining() > slabSize) {
+                return 0;
+            }
+            final int order = orderOf(data.remaining());
+            int evicted = 0;
+            long address = allocate(order);
+            while (address < 0) {
+                if (probation.isEmpty() && protectedBlocks.isEmpty()) {
+                    // The rest of the slabs is pinned
+                    return evicted;
+                }
+                final boolean fromProbation = !probation.isEmpty();
+                final Iterator<Map.Entry<Long, Slot>> eldest =
+                        (fromProbation ? probation : protectedBlocks).entrySet().iterator();
+                final Slot slot = eldest.next().getValue();
+                eldest.remove();
+                if (fromProbation) {
+                    probationSize -= slot.capacity();
+                } else {
+                    protectedSize -= slot.capacity();
+                }
+                if (slot.pins == 0) {
+                    release(slot.address, slot.order);
+                } else {
+                    // Released by the last reader
+                    slot.evicted = true;
+                }
+                evicted++;
+                address = allocate(order);
+            }
+            final ByteBuffer block = slice(address, data.remaining());
+            block.put(data.duplicate());
+            block.flip();
+            final Slot slot = new Slot(key, address, order, block.asReadOnlyBuffer());
+            probation.put(key, slot);
+            probationSize += slot.capacity();
+            return evicted;
+        }
+
+        synchronized long size() {
+            return probationSize + protectedSize;
+        }
+
+        @NotNull
+        private ByteBuffer slice(final long address, final int size) {
+            final ByteBuffer result = slabs[(int) (address / slabSize)].duplicate();
+            result.position((int) (address % slabSize));
+            result.limit(result.position() + size);
+            return result.slice();
+        }
+
+        private static int orderOf(final int size) {
+            final int slots = (Math.max(size, 1) + MIN_SLOT_SIZE - 1) / MIN_SLOT_SIZE;
+            return Integer.SIZE - Integer.numberOfLeadingZeros(slots - 1);
+        }
+
+        // Returns the address of a free slot or -1, a larger slot is split in halves
+        private long allocate(final int order) {
+            for (int larger = order; larger < free.size(); larger++) {
+                final Set<Long> slots = free.get(larger);
+                if (slots.isEmpty()) {
+                    continue;
+                }
+                final Iterator<Long> any = slots.iterator();
+                final long address = any.next();
+                any.remove();
+                for (int split = larger - 1; split >= order; split--) {
+                    free.get(split).add(address + ((long) MIN_SLOT_SIZE << split));
+                }
+                return address;
+            }
+            return -1L;
+        }
+
+        // The slot is merged with its buddy as long as the buddy is free
+        private void release(final long address, final int order) {
+            long merged = address;
+            int mergedOrder = order;
+            while (mergedOrder + 1 < free.size()) {
+                final long buddy = merged ^ ((long) MIN_SLOT_SIZE << mergedOrder);
+                if (!free.get(mergedOrder).remove(buddy)) {
+                    break;
+                }
+                merged = Math.min(merged, buddy);
+                mergedOrder++;
+            }
+            free.get(mergedOrder).add(merged);
+        }
+    }
+}
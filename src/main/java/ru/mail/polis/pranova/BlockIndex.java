@@ -0,0 +1,581 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.io.File;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sparse index of a table split into blocks of about the same size.
+ *
+ * <p>A block is {@code [cells][offset of each cell from the block start as unsigned short]}, so a block
+ * is searched without touching the rest of the table. The index holds the start and the first row of
+ * every block and is kept on heap. The first key of a block is not copied to the index, it's read from
+ * the head of the block: keys may be as large as blocks. Rows are numbered through the whole table.
+ *
+ * <p>A compressed block is stored as {@code [first key size][first key][raw size][compressed block]},
+ * the first key stays uncompressed to be searched in place. The first cell of a block is a restart point
+ * of prefix-compressed keys, so its key is whole too.
+ *
+ * <p>Tables are split into segments of whole blocks, so a table may be larger than a buffer. Small tables
+ * are a single segment. The blocks are read by the {@link TableInput} of the {@link IoMode}: the segments are
+ * mapped or every block is read by a positional read, the blocks which are not read in place are kept in
+ * the block cache if there is one.
+ *
+ * <p>Tables written before blocks have an offset per row, they are indexed as a single block.
+ */
+final class BlockIndex {
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+    // Enough to read most first keys at once
+    private static final int FIRST_KEY_HEAD = 64;
+    // Ids of the tables in the block cache
+    private static final AtomicInteger IDS = new AtomicInteger();
+    // Cached block borrowed by the thread
+    private static final ThreadLocal<BlockCache.Slot> PINNED = new ThreadLocal<>();
+
+    // Null if the table is read without mapping
+    @Nullable
+    private final ByteBuffer[] segments;
+    private final long[] segmentStarts;
+    private final int[] segmentOf;
+    private final long[] starts;
+    private final int[] firstRows;
+    // Null for a single block with an offset per row
+    @Nullable
+    private final ByteBuffer[] firstKeys;
+    @Nullable
+    private final LongBuffer rowOffsets;
+    // Null for blocks served right from the cells
+    @Nullable
+    private final Codec codec;
+    // Null for a single block with an offset per row
+    @Nullable
+    private final TableInput input;
+    @Nullable
+    private final BlockCache cache;
+    private final int id = IDS.incrementAndGet();
+    // Users of the channel of a table read without mapping: the table and the reads in progress
+    private final AtomicInteger users = new AtomicInteger(1);
+    // Uncompressed blocks of a mapped table are served right from the segments
+    private final boolean inPlace;
+    private final long end;
+    private final int rows;
+
+    private BlockIndex(@Nullable final ByteBuffer[] segments,
+                       @NotNull final long[] segmentStarts,
+                       @NotNull final int[] segmentOf,
+                       @NotNull final long[] starts,
+                       @NotNull final int[] firstRows,
+                       @Nullable final ByteBuffer[] firstKeys,
+                       @Nullable final LongBuffer rowOffsets,
+                       @Nullable final Codec codec,
+                       @Nullable final TableInput input,
+                       @Nullable final BlockCache cache,
+                       final long end,
+                       final int rows) {
+        this.segments = segments;
+        this.segmentStarts = segmentStarts;
+        this.segmentOf = segmentOf;
+        this.starts = starts;
+        this.firstRows = firstRows;
+        this.firstKeys = firstKeys;
+        this.rowOffsets = rowOffsets;
+        this.codec = codec;
+        this.input = input;
+        this.cache = cache;
+        this.inPlace = codec == null && segments != null;
+        this.end = end;
+        this.rows = rows;
+    }
+
+    /**
+     * Index a table with an offset per row.
+     *
+     * @param offsets of the rows
+     * @param cells   of the table
+     * @return index of a single block
+     */
+    @NotNull
+    static BlockIndex of(@NotNull final LongBuffer offsets, @NotNull final ByteBuffer cells) {
+        return new BlockIndex(new ByteBuffer[]{cells}, new long[]{0L}, new int[]{0}, new long[]{0L}, new int[]{0},
+                null, offsets, null, null, null, cells.limit(), offsets.limit());
+    }
+
+    /**
+     * Load the index of a table and open its blocks.
+     *
+     * @param section     written by {@link Builder#writeTo()}
+     * @param file        of the table
+     * @param fc          of the table, not used after the index is loaded
+     * @param cellsSize   size of the blocks at the start of the table
+     * @param segmentSize maximum size of a mapped segment unless a single block is larger
+     * @param codec       of the blocks or null if they are not compressed
+     * @param varints     whether key sizes of the cells are varints
+     * @param mode        how the blocks are read
+     * @param cache       of the blocks not read in place or null to read them every time
+     * @return loaded index
+     * @throws IOException if the index is corrupted
+     */
+    @NotNull
+    static BlockIndex read(@NotNull final ByteBuffer section,
+                           @NotNull final File file,
+                           @NotNull final FileChannel fc,
+                           final long cellsSize,
+                           final int segmentSize,
+                           @Nullable final Codec codec,
+                           final boolean varints,
+                           @NotNull final IoMode mode,
+                           @Nullable final BlockCache cache) throws IOException {
+        final ByteBuffer buffer = section.duplicate();
+        final int count = buffer.getInt();
+        final int rows = buffer.getInt();
+        if (count < 0 || rows < count || buffer.remaining() != count * ENTRY_SIZE) {
+            throw new IOException("Bad block index");
+        }
+        final long[] starts = new long[count];
+        final int[] firstRows = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = buffer.getLong();
+            firstRows[i] = buffer.getInt();
+            if (starts[i] + Integer.BYTES > cellsSize
+                    || i > 0 && (starts[i] <= starts[i - 1] || firstRows[i] <= firstRows[i - 1])) {
+                throw new IOException("Bad block index");
+            }
+        }
+
+        // A segment ends before the block which doesn't fit
+        final int[] segmentOf = new int[count];
+        long[] segmentStarts = new long[count + 1];
+        int segmentCount = 1;
+        for (int i = 0; i < count; i++) {
+            final long blockEnd = i + 1 < count ? starts[i + 1] : cellsSize;
+            if (blockEnd - starts[i] > Integer.MAX_VALUE) {
+                throw new IOException("Block is too large: " + (blockEnd - starts[i]));
+            }
+            final long segmentStart = segmentStarts[segmentCount - 1];
+            if (blockEnd - segmentStart > segmentSize && starts[i] > segmentStart) {
+                segmentStarts[segmentCount++] = starts[i];
+            }
+            segmentOf[i] = segmentCount - 1;
+        }
+        segmentStarts = Arrays.copyOf(segmentStarts, segmentCount);
+        final TableInput input = TableInput.open(file, fc, mode, segmentStarts, cellsSize);
+        ByteBuffer[] segments = null;
+        if (input instanceof TableInput.Mapped) {
+            segments = new ByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = ((TableInput.Mapped) input).segment(i);
+            }
+        }
+
+        final boolean varint = varints && codec == null;
+        final ByteBuffer[] firstKeys = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            if (segments == null) {
+                final long blockEnd = i + 1 < count ? starts[i + 1] : cellsSize;
+                ByteBuffer head = input.read(starts[i], (int) Math.min(blockEnd - starts[i], FIRST_KEY_HEAD));
+                final int keyEnd = firstKeyEnd(head, varint);
+                if (keyEnd > head.limit()) {
+                    head = input.read(starts[i], keyEnd);
+                }
+                // The buffer of the read is reused
+                firstKeys[i] = copy(firstKey(head, 0, varint));
+            } else {
+                final int start = (int) (starts[i] - segmentStarts[segmentOf[i]]);
+                firstKeys[i] = firstKey(segments[segmentOf[i]], start, varint);
+            }
+        }
+        return new BlockIndex(segments, segmentStarts, segmentOf, starts, firstRows, firstKeys, null, codec,
+                input, cache, cellsSize, rows);
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.put(buffer.duplicate());
+        result.flip();
+        return result;
+    }
+
+    // The first key of a block is whole: no shared prefix, the size and the key, or an int size if not varint
+    @NotNull
+    private static ByteBuffer firstKey(@NotNull final ByteBuffer data, final int start, final boolean varint) {
+        final ByteBuffer key = data.duplicate();
+        if (varint) {
+            final int size = (int) Bytes.getVarLong(data, start + 1);
+            key.position(start + 1 + Bytes.varLongSize(size));
+            key.limit(key.position() + size);
+        } else {
+            key.position(start + Integer.BYTES);
+            key.limit(key.position() + data.getInt(start));
+        }
+        return key.slice();
+    }
+
+    private static int firstKeyEnd(@NotNull final ByteBuffer head, final boolean varint) {
+        if (varint) {
+            final int size = (int) Bytes.getVarLong(head, 1);
+            return 1 + Bytes.varLongSize(size) + size;
+        }
+        return Integer.BYTES + head.getInt(0);
+    }
+
+    /**
+     * Keep the channel of the table open until {@link #release()}, mapped tables have no channel to keep.
+     *
+     * @return false if the channel is closed already
+     */
+    boolean retain() {
+        if (input == null || input.isMapped()) {
+            return true;
+        }
+        int count = users.get();
+        while (count > 0) {
+            if (users.compareAndSet(count, count + 1)) {
+                return true;
+            }
+            count = users.get();
+        }
+        return false;
+    }
+
+    /**
+     * Let the channel of the table be closed, it's closed once the table and every read have released it.
+     *
+     * @throws IOException if the channel can't be closed
+     */
+    void release() throws IOException {
+        if (input != null && !input.isMapped() && users.decrementAndGet() == 0) {
+            input.close();
+        }
+    }
+
+    /**
+     * Get the size of the blocks.
+     *
+     * @return offset of the end of the last block in the file
+     */
+    long end() {
+        return end;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * Find the only block which may hold the key, the table must not be empty.
+     *
+     * @param key to look for
+     * @return the last block with the first key not greater than the key, 0 if there is no such block
+     */
+    int blockOf(@NotNull final ByteBuffer key) {
+        if (firstKeys == null) {
+            return 0;
+        }
+        final int found = Arrays.binarySearch(firstKeys, key);
+        return found >= 0 ? found : Math.max(-found - 2, 0);
+    }
+
+    /**
+     * Find the block of a row.
+     *
+     * @param row of the table
+     * @return block holding the row
+     */
+    int blockOfRow(final int row) {
+        assert 0 <= row && row < rows;
+        final int found = Arrays.binarySearch(firstRows, row);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    int firstRow(final int block) {
+        return firstRows[block];
+    }
+
+    int endRow(final int block) {
+        return block + 1 < firstRows.length ? firstRows[block + 1] : rows;
+    }
+
+    // Offset of the block within its segment
+    private int blockStart(final int block) {
+        return (int) (starts[block] - segmentStarts[segmentOf[block]]);
+    }
+
+    private int blockEnd(final int block) {
+        final long blockEnd = block + 1 < starts.length ? starts[block + 1] : end;
+        return (int) (blockEnd - segmentStarts[segmentOf[block]]);
+    }
+
+    /**
+     * Get the contents of a block to keep.
+     *
+     * @param block number of the block
+     * @return the segment of the block if it's read in place, the block alone otherwise
+     * @throws IOException if the block can't be read or decompressed
+     */
+    @NotNull
+    ByteBuffer block(final int block) throws IOException {
+        if (inPlace) {
+            assert segments != null;
+            return segments[segmentOf[block]];
+        }
+        if (cache != null) {
+            final ByteBuffer cached = cache.get(id, block);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final ByteBuffer result = read(block);
+        // The buffer of the read is reused, the caller keeps the block
+        return codec == null ? copy(result) : result;
+    }
+
+    /**
+     * Get the contents of a block for a lookup which keeps nothing of the block, so a block read without
+     * mapping is not copied and a cached block is read in the cache. The thread borrows one block at a time
+     * and gives it back by {@link #giveBack()}.
+     *
+     * @param block number of the block
+     * @return the segment of the block if it's read in place, the block alone otherwise, valid until
+     *         it's given back unless {@link #isInPlace()}
+     * @throws IOException if the block can't be read or decompressed
+     */
+    @NotNull
+    ByteBuffer borrow(final int block) throws IOException {
+        if (inPlace) {
+            assert segments != null;
+            return segments[segmentOf[block]];
+        }
+        if (cache != null) {
+            assert PINNED.get() == null : "A block is borrowed already";
+            final BlockCache.Slot slot = cache.pin(id, block);
+            if (slot != null) {
+                PINNED.set(slot);
+                return slot.data();
+            }
+        }
+        return read(block);
+    }
+
+    /**
+     * Give back the block borrowed by the thread, if any.
+     */
+    void giveBack() {
+        if (cache == null) {
+            return;
+        }
+        final BlockCache.Slot slot = PINNED.get();
+        if (slot != null) {
+            PINNED.set(null);
+            cache.unpin(slot);
+        }
+    }
+
+    /**
+     * Read a block missing in the cache and cache it.
+     */
+    @NotNull
+    private ByteBuffer read(final int block) throws IOException {
+        assert input != null;
+        final long blockEnd = block + 1 < starts.length ? starts[block + 1] : end;
+        final ByteBuffer stored = input.read(starts[block], (int) (blockEnd - starts[block]));
+        ByteBuffer result = stored;
+        if (codec != null) {
+            final int offset = Integer.BYTES + stored.getInt(0);
+            final int rawSize = stored.getInt(offset);
+            stored.position(offset + Integer.BYTES);
+            result = codec.decompress(stored.slice(), rawSize);
+        }
+        if (cache != null) {
+            cache.put(id, block, result);
+        }
+        return result;
+    }
+
+    /**
+     * Check whether the blocks are read right from the mapped segments.
+     *
+     * @return true if the blocks stay valid
+     */
+    boolean isInPlace() {
+        return inPlace;
+    }
+
+    /**
+     * Get the offset of a cell within the contents of its block.
+     *
+     * @param data  of the block by {@link #block(int)}
+     * @param block number of the block
+     * @param row   of the cell
+     * @return offset of the cell in the data
+     */
+    int cellOffset(@NotNull final ByteBuffer data, final int block, final int row) {
+        assert firstRow(block) <= row && row < endRow(block);
+        if (rowOffsets != null) {
+            return (int) rowOffsets.get(row);
+        }
+        final int base = inPlace ? blockStart(block) : 0;
+        final int blockEnd = inPlace ? blockEnd(block) : data.limit();
+        return base + (data.getShort(blockEnd - Short.BYTES * (endRow(block) - row)) & 0xFFFF);
+    }
+
+    /**
+     * Get the position of a row in the file to estimate the size of a part of the table.
+     *
+     * @param row of the table
+     * @return offset of the cell or of its block if the block isn't read in place
+     */
+    long positionOf(final int row) {
+        final int block = blockOfRow(row);
+        if (!inPlace) {
+            return starts[block];
+        }
+        assert segments != null;
+        return segmentStarts[segmentOf[block]] + cellOffset(segments[segmentOf[block]], block, row);
+    }
+
+    /**
+     * Splits cells written one after another into blocks.
+     */
+    static final class Builder {
+        private final TableOutput out;
+        private final int blockSize;
+        @Nullable
+        private final Codec codec;
+        private long[] starts = new long[64];
+        private int[] firstRows = new int[64];
+        private int blocks;
+        private ByteBuffer block;
+        private ByteBuffer firstKey;
+        private int[] cellOffsets = new int[64];
+        private int blockRows;
+        private int rows;
+
+        /**
+         * Create a builder appending blocks to the file.
+         *
+         * @param out       of the file being written
+         * @param blockSize approximate size of the blocks
+         * @param codec     to compress blocks with or null to keep them as is
+         */
+        Builder(@NotNull final TableOutput out, final int blockSize, @Nullable final Codec codec) {
+            assert 0 < blockSize && blockSize <= MAX_BLOCK_SIZE;
+            this.out = out;
+            this.blockSize = blockSize;
+            this.codec = codec;
+            this.block = ByteBuffer.allocate(blockSize * 2);
+        }
+
+        /**
+         * Prepare for the next cell, the current block is written if it's full.
+         *
+         * @return number of cells in the block before the next one
+         * @throws IOException if the block can't be written
+         */
+        int next() throws IOException {
+            if (blockRows > 0 && block.position() >= blockSize) {
+                finish();
+            }
+            return blockRows;
+        }
+
+        /**
+         * Start the next cell, {@link #next()} must be called first.
+         *
+         * @param size of the cell
+         * @param key  of the cell
+         * @return buffer to put exactly size bytes of the cell to
+         * @throws IOException if the cell is too large
+         */
+        @NotNull
+        ByteBuffer add(final int size, @NotNull final ByteBuffer key) throws IOException {
+            assert blockRows == 0 || block.position() < blockSize;
+            if (blockRows == 0) {
+                if (blocks == starts.length) {
+                    starts = Arrays.copyOf(starts, blocks * 2);
+                    firstRows = Arrays.copyOf(firstRows, blocks * 2);
+                }
+                starts[blocks] = out.position();
+                firstRows[blocks] = rows;
+                blocks++;
+                firstKey = key;
+            }
+            if (blockRows == cellOffsets.length) {
+                cellOffsets = Arrays.copyOf(cellOffsets, blockRows * 2);
+            }
+            // Room for the cell and the offsets
+            final long needed = (long) block.position() + size + Short.BYTES * (blockRows + 1L);
+            if (needed > block.capacity()) {
+                if (needed > Integer.MAX_VALUE) {
+                    throw new IOException("Cell is too large: " + size);
+                }
+                final ByteBuffer larger = ByteBuffer.allocate((int) Math.max(needed, block.capacity() * 2L));
+                block.flip();
+                larger.put(block);
+                block = larger;
+            }
+            cellOffsets[blockRows++] = block.position();
+            rows++;
+            return block;
+        }
+
+        /**
+         * Write the current block.
+         *
+         * @throws IOException if the block can't be written
+         */
+        void finish() throws IOException {
+            if (blockRows == 0) {
+                return;
+            }
+            for (int i = 0; i < blockRows; i++) {
+                block.putShort((short) cellOffsets[i]);
+            }
+            block.flip();
+            if (codec == null) {
+                out.put(block);
+            } else {
+                final int rawSize = block.remaining();
+                out.putInt(firstKey.remaining());
+                out.put(firstKey.duplicate());
+                out.putInt(rawSize);
+                out.put(codec.compress(block));
+            }
+            block.clear();
+            blockRows = 0;
+            firstKey = null;
+        }
+
+        /**
+         * Get the size of the table so far.
+         *
+         * @return bytes written and buffered
+         */
+        long size() {
+            return out.position() + block.position();
+        }
+
+        /**
+         * Append the index to the file, all the blocks must be finished.
+         *
+         * @throws IOException if the index can't be written
+         */
+        void writeTo() throws IOException {
+            assert blockRows == 0;
+            out.putInt(blocks);
+            out.putInt(rows);
+            for (int i = 0; i < blocks; i++) {
+                out.putLong(starts[i]);
+                out.putInt(firstRows[i]);
+            }
+        }
+    }
+}
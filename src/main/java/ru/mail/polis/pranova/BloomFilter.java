@@ -0,0 +1,175 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bloom filter of the keys of a table, kept on heap so a lookup of a missing key doesn't touch the table.
+ *
+ * <p>Stored as {@code [number of hashes][bits as longs]}. The probes are derived from one 64-bit hash
+ * of the key by double hashing. The hash is the first half of x64 MurmurHash3 of 128 bits with seed 0,
+ * the same as {@code Hashing.murmur3_128().hashBytes(key).asLong()} of Guava, computed in place.
+ */
+final class BloomFilter {
+    private static final long C1 = 0x87C37B91114253D5L;
+    private static final long C2 = 0x4CF5AD432745937FL;
+    private static final int MAX_HASHES = 30;
+
+    private final long[] bits;
+    private final int hashes;
+
+    private BloomFilter(@NotNull final long[] bits, final int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Hash a key to be added to a filter later.
+     *
+     * @param key to hash
+     * @return hash of the key
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int start = key.position();
+        final int length = key.remaining();
+        final boolean bigEndian = key.order() == ByteOrder.BIG_ENDIAN;
+        long h1 = 0;
+        long h2 = 0;
+        int offset = start;
+        for (final int end = start + (length & ~15); offset < end; offset += 16) {
+            long k1 = key.getLong(offset);
+            long k2 = key.getLong(offset + Long.BYTES);
+            if (bigEndian) {
+                k1 = Long.reverseBytes(k1);
+                k2 = Long.reverseBytes(k2);
+            }
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52DCE729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+
+        // Up to 15 bytes left, little-endian
+        long k1 = 0;
+        long k2 = 0;
+        final int tail = start + length - offset;
+        for (int i = tail - 1; i >= Long.BYTES; i--) {
+            k2 = k2 << Byte.SIZE | key.get(offset + i) & 0xFF;
+        }
+        for (int i = Math.min(tail, Long.BYTES) - 1; i >= 0; i--) {
+            k1 = k1 << Byte.SIZE | key.get(offset + i) & 0xFF;
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long mixK1(final long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(final long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(final long k) {
+        long result = k;
+        result ^= result >>> 33;
+        result *= 0xFF51AFD7ED558CCDL;
+        result ^= result >>> 33;
+        result *= 0xC4CEB9FE1A85EC53L;
+        result ^= result >>> 33;
+        return result;
+    }
+
+    /**
+     * Build a filter of the keys.
+     *
+     * @param keyHashes  hashes of the keys by {@link #hash(ByteBuffer)}
+     * @param count      number of hashes to take
+     * @param bitsPerKey size of the filter
+     * @return new filter
+     */
+    @NotNull
+    static BloomFilter of(@NotNull final long[] keyHashes, final int count, final int bitsPerKey) {
+        assert bitsPerKey > 0;
+        final long size = Math.max((long) count * bitsPerKey, Long.SIZE);
+        // ln 2 of bits per key hashes minimize the false positive rate
+        final int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * 0.69)));
+        final BloomFilter result = new BloomFilter(new long[(int) ((size + Long.SIZE - 1) / Long.SIZE)], hashes);
+        for (int i = 0; i < count; i++) {
+            result.add(keyHashes[i]);
+        }
+        return result;
+    }
+
+    private void add(final long hash) {
+        for (int i = 0; i < hashes; i++) {
+            final long bit = probe(hash, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private long probe(final long hash, final int i) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        return ((h1 + (long) i * h2) & Long.MAX_VALUE) % ((long) bits.length * Long.SIZE);
+    }
+
+    /**
+     * Check whether the key may be in the table.
+     *
+     * @param key to look for
+     * @return false if the key is surely absent
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            final long bit = probe(hash, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    ByteBuffer toBuffer() {
+        final ByteBuffer result = ByteBuffer.allocate(Integer.BYTES + Long.BYTES * bits.length);
+        result.putInt(hashes);
+        result.asLongBuffer().put(bits);
+        result.rewind();
+        return result;
+    }
+
+    /**
+     * Load a filter into memory.
+     *
+     * @param section written by {@link #toBuffer()}
+     * @return loaded filter
+     * @throws IOException if the section is corrupted
+     */
+    @NotNull
+    static BloomFilter from(@NotNull final ByteBuffer section) throws IOException {
+        final ByteBuffer buffer = section.duplicate();
+        final int hashes = buffer.getInt();
+        if (hashes <= 0 || hashes > MAX_HASHES || buffer.remaining() % Long.BYTES != 0 || !buffer.hasRemaining()) {
+            throw new IOException("Bad Bloom filter");
+        }
+        final long[] bits = new long[buffer.remaining() / Long.BYTES];
+        buffer.asLongBuffer().get(bits);
+        return new BloomFilter(bits, hashes);
+    }
+}
@@ -1,6 +1,11 @@
 package ru.mail.polis.pranova;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public final class Bytes {
     private Bytes() {
@@ -31,4 +36,88 @@ public final class Bytes {
         result.rewind();
         return result;
     }
+
+    /**
+     * Put an unsigned LEB128 varint, small values take less bytes.
+     *
+     * @param buffer to put to
+     * @param value  treated as unsigned
+     */
+    public static void putVarLong(final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Get a varint written by {@link #putVarLong(ByteBuffer, long)}.
+     *
+     * @param buffer to get from
+     * @param offset of the varint in the buffer, it takes {@link #varLongSize(long)} bytes of the result
+     * @return value
+     */
+    public static long getVarLong(final ByteBuffer buffer, final int offset) {
+        long result = 0;
+        for (int i = 0; ; i++) {
+            final byte b = buffer.get(offset + i);
+            result |= (long) (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Get the size of a varint.
+     *
+     * @param value treated as unsigned
+     * @return number of bytes
+     */
+    public static int varLongSize(final long value) {
+        return value == 0 ? 1 : (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    /**
+     * Map signed values to unsigned ones so small negative values take less bytes as varints.
+     *
+     * @param value signed value
+     * @return 0, -1, 1, -2, 2... mapped to 0, 1, 2, 3, 4...
+     */
+    public static long zigZag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    /**
+     * Revert {@link #zigZag(long)}.
+     *
+     * @param value unsigned value
+     * @return signed value
+     */
+    public static long unZigZag(final long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Read a part of a file by positional reads.
+     *
+     * @param fc       of the file
+     * @param position of the part
+     * @param size     of the part
+     * @return heap buffer with exactly the part
+     * @throws IOException if the file is shorter or can't be read
+     */
+    @NotNull
+    static ByteBuffer read(@NotNull final FileChannel fc, final long position, final int size) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        while (result.hasRemaining()) {
+            if (fc.read(result, position + result.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + (position + result.position()));
+            }
+        }
+        result.flip();
+        return result;
+    }
 }
@@ -8,6 +8,8 @@ import java.util.Comparator;
 public final class Cell {
     public static final Comparator<Cell> COMPARATOR =
             Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
+    public static final Comparator<Cell> REVERSE_COMPARATOR =
+            Comparator.comparing(Cell::getKey, Comparator.reverseOrder()).thenComparing(Cell::getValue);
 
     @NotNull
     private final ByteBuffer key;
@@ -0,0 +1,113 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of compaction inputs which are not merged into published outputs yet.
+ *
+ * <p>Inputs are deleted while compaction goes on only after a checkpoint is persisted, so after
+ * a crash the rows already merged are not read from the surviving inputs again. Otherwise values
+ * hidden by tombstones dropped from the outputs would come back.
+ */
+final class Checkpoint {
+    private Checkpoint() {
+    }
+
+    /**
+     * Atomically persist the live rows of tables.
+     *
+     * @param live rows [from, to) of every file by its name
+     * @param tmp  file to write to
+     * @param to   checkpoint file to replace
+     * @throws IOException if the checkpoint can't be written
+     */
+    static void write(@NotNull final Map<String, List<int[]>> live,
+                      @NotNull final File tmp,
+                      @NotNull final File to) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(live.size());
+            for (final Map.Entry<String, List<int[]>> table : live.entrySet()) {
+                out.writeUTF(table.getKey());
+                out.writeInt(table.getValue().size());
+                for (final int[] rows : table.getValue()) {
+                    out.writeInt(rows[0]);
+                    out.writeInt(rows[1]);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the live rows of tables.
+     *
+     * @param from checkpoint file
+     * @return rows [from, to) of every file by its name
+     * @throws IOException if the checkpoint can't be read
+     */
+    @NotNull
+    static Map<String, List<int[]>> read(@NotNull final File from) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(from)))) {
+            final int tables = in.readInt();
+            final Map<String, List<int[]>> result = new LinkedHashMap<>();
+            for (int i = 0; i < tables; i++) {
+                final String name = in.readUTF();
+                final int count = in.readInt();
+                final List<int[]> rows = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    rows.add(new int[]{in.readInt(), in.readInt()});
+                }
+                result.put(name, rows);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Get rows live according to both lists.
+     *
+     * @param left  sorted disjoint ranges [from, to)
+     * @param right sorted disjoint ranges [from, to)
+     * @return sorted disjoint ranges [from, to)
+     */
+    @NotNull
+    static List<int[]> intersect(@NotNull final List<int[]> left, @NotNull final List<int[]> right) {
+        final List<int[]> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < left.size() && j < right.size()) {
+            final int from = Math.max(left.get(i)[0], right.get(j)[0]);
+            final int to = Math.min(left.get(i)[1], right.get(j)[1]);
+            if (from < to) {
+                result.add(new int[]{from, to});
+            }
+            if (left.get(i)[1] < right.get(j)[1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+}
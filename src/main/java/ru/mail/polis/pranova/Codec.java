@@ -0,0 +1,71 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression of table blocks.
+ *
+ * <p>The name of the codec is written to every compressed table, so tables written with different codecs
+ * coexist as long as the storage knows all of them. Blocks are compressed and decompressed concurrently,
+ * so the codec must be thread-safe.
+ */
+public interface Codec {
+    /**
+     * Keep blocks as is, they are read right from the mapped file.
+     */
+    Codec NONE = new Codec() {
+        @NotNull
+        @Override
+        public String name() {
+            return "none";
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+            return raw;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+            return compressed;
+        }
+    };
+
+    /**
+     * Deflate of the JDK with the default level.
+     */
+    Codec DEFLATE = new DeflateCodec(DeflateCodec.DEFAULT_LEVEL);
+
+    /**
+     * Get the name written to the tables.
+     *
+     * @return name unique among codecs
+     */
+    @NotNull
+    String name();
+
+    /**
+     * Compress a block.
+     *
+     * @param raw block, consumed
+     * @return compressed block
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer raw);
+
+    /**
+     * Decompress a block.
+     *
+     * @param compressed block, consumed
+     * @param rawSize    size of the block before compression
+     * @return block of exactly the raw size
+     * @throws IOException if the block is corrupted
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer compressed, int rawSize) throws IOException;
+}
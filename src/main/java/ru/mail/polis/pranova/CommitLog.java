@@ -0,0 +1,324 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of mutations not yet flushed to a {@link FileTable}.
+ *
+ * <p>Each record is {@code [length][crc32][timestamp][key size][key][value size][value]},
+ * a tombstone is stored as a negative timestamp without value, like in {@link FileTable}.
+ * A range tombstone has key size -1 followed by {@link RangeTombstone#writeTo(ByteBuffer)}.
+ * Replay stops at the first torn or corrupted record.
+ */
+public final class CommitLog implements Closeable {
+    private static final int HEADER = Integer.BYTES * 2;
+    // Key size marking a range tombstone
+    private static final int RANGE = -1;
+
+    private final Durability durability;
+    private final ScheduledExecutorService syncer;
+    private final Lock forceLock = new ReentrantLock();
+
+    private File file;
+    private FileChannel channel;
+    // Bytes appended to all segments, guarded by this
+    private long written;
+    private volatile long synced;
+
+    public enum Durability {
+        /**
+         * Leave it to the OS, survives process crash only.
+         */
+        NONE,
+        /**
+         * Fsync in background every {@link Config#getSyncIntervalMillis()}.
+         */
+        PERIODIC,
+        /**
+         * Acknowledge a write only after it is fsynced, concurrent writers share one fsync.
+         */
+        BATCH
+    }
+
+    /**
+     * Open a new log segment.
+     *
+     * @param file   to append records to
+     * @param config durability settings
+     * @throws IOException if the segment can't be created
+     */
+    public CommitLog(@NotNull final File file, @NotNull final Config config) throws IOException {
+        this.durability = config.getDurability();
+        this.file = file;
+        this.channel = open(file);
+        if (durability == Durability.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(Threads.daemon("commit-log-sync"));
+            final long interval = config.getSyncIntervalMillis();
+            syncer.scheduleWithFixedDelay(this::syncQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    private static FileChannel open(@NotNull final File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append a mutation, the caller should pass the result to {@link #sync(long)} before acknowledging it.
+     *
+     * @param key   of the mutation
+     * @param value new value or tombstone
+     * @return position of the record end
+     * @throws IOException if the record can't be written
+     */
+    public long append(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        return append(encode(key, value));
+    }
+
+    /**
+     * Append a range removal, the caller should pass the result to {@link #sync(long)} before acknowledging it.
+     *
+     * @param range removed key range
+     * @return position of the record end
+     * @throws IOException if the record can't be written
+     */
+    public long append(@NotNull final RangeTombstone range) throws IOException {
+        final ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + range.sizeInBytes());
+        payload.putInt(RANGE);
+        range.writeTo(payload);
+        payload.flip();
+        return append(payload);
+    }
+
+    private long append(@NotNull final ByteBuffer payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(payload.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        final long position;
+        synchronized (this) {
+            writeFully(header);
+            writeFully(payload);
+            written += HEADER + payload.limit();
+            position = written;
+        }
+        return position;
+    }
+
+    private void writeFully(@NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final int keySize = key.remaining();
+        final int size = Integer.BYTES + keySize + Long.BYTES
+                + (value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining())
+                + (value.getExpiry() == Value.NEVER ? 0 : Long.BYTES);
+        final ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putInt(keySize);
+        payload.put(key.duplicate());
+        if (value.isRemoved()) {
+            payload.putLong(-value.getTimeStamp());
+        } else {
+            final ByteBuffer data = value.getData();
+            payload.putLong(value.getTimeStamp());
+            payload.putInt(data.remaining());
+            payload.put(data);
+            // Optional trailer, so records of older versions are still read
+            if (value.getExpiry() != Value.NEVER) {
+                payload.putLong(value.getExpiry());
+            }
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * In {@link Durability#BATCH} mode wait until everything appended up to the position is on disk.
+     * The first waiter forces the channel on behalf of everyone queued behind it.
+     *
+     * @param position returned by {@link #append(ByteBuffer, Value)}
+     * @throws IOException if the log can't be forced
+     */
+    public void sync(final long position) throws IOException {
+        if (durability == Durability.BATCH) {
+            force(position);
+        }
+    }
+
+    private void force(final long position) throws IOException {
+        forceLock.lock();
+        try {
+            if (synced >= position) {
+                // Somebody has already forced our record
+                return;
+            }
+            final long target;
+            final FileChannel current;
+            synchronized (this) {
+                target = written;
+                current = channel;
+            }
+            current.force(false);
+            synced = target;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            final long position;
+            synchronized (this) {
+                position = written;
+            }
+            force(position);
+        } catch (IOException e) {
+            // Will be retried on the next tick or on close
+        }
+    }
+
+    /**
+     * Switch appends to a new segment, the old one is made durable and closed.
+     *
+     * @param next segment to append to
+     * @return previous segment which may be deleted once its records are flushed
+     * @throws IOException if segments can't be switched
+     */
+    @NotNull
+    public File roll(@NotNull final File next) throws IOException {
+        final FileChannel nextChannel = open(next);
+        forceLock.lock();
+        try {
+            final File previousFile;
+            final FileChannel previous;
+            final long end;
+            synchronized (this) {
+                previousFile = file;
+                previous = channel;
+                end = written;
+                file = next;
+                channel = nextChannel;
+            }
+            if (durability != Durability.NONE) {
+                previous.force(false);
+            }
+            previous.close();
+            synced = Math.max(synced, end);
+            return previousFile;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @NotNull
+    public synchronized File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        forceLock.lock();
+        try {
+            synchronized (this) {
+                if (durability != Durability.NONE) {
+                    channel.force(false);
+                }
+                channel.close();
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Read all intact records of the segment.
+     *
+     * @param file     segment to read
+     * @param consumer receives copies of keys and values in the order of appends
+     * @param ranges   receives copies of range tombstones
+     * @throws IOException if the segment can't be read
+     */
+    public static void replay(@NotNull final File file,
+                              @NotNull final BiConsumer<ByteBuffer, Value> consumer,
+                              @NotNull final Consumer<RangeTombstone> ranges) throws IOException {
+        final ByteBuffer log;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            log = ByteBuffer.allocate((int) fc.size());
+            while (log.hasRemaining() && fc.read(log) >= 0) {
+                // Keep reading
+            }
+        }
+        log.flip();
+
+        while (log.remaining() >= HEADER) {
+            final int size = log.getInt();
+            final int checksum = log.getInt();
+            if (size < Integer.BYTES + Long.BYTES || size > log.remaining()) {
+                // Torn tail
+                return;
+            }
+            final ByteBuffer payload = log.slice();
+            payload.limit(size);
+            log.position(log.position() + size);
+            final CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+
+            final int keySize = payload.getInt();
+            if (keySize == RANGE) {
+                // The payload is a private copy of the log
+                ranges.accept(RangeTombstone.readFrom(payload));
+                continue;
+            }
+            final ByteBuffer key = copy(payload, keySize);
+            final long timestamp = payload.getLong();
+            if (timestamp < 0) {
+                consumer.accept(key, new Value(-timestamp, null));
+            } else {
+                final int valueSize = payload.getInt();
+                final ByteBuffer value = copy(payload, valueSize);
+                final long expiry = payload.remaining() >= Long.BYTES ? payload.getLong() : Value.NEVER;
+                consumer.accept(key, new Value(timestamp, value, expiry));
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer from, final int size) {
+        final ByteBuffer part = from.slice();
+        part.limit(size);
+        from.position(from.position() + size);
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(part);
+        result.flip();
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tables to merge and the shape of the result.
+ */
+public final class Compaction {
+    @NotNull
+    private final List<FileTable> inputs;
+    private final int level;
+    private final long maxFileSize;
+
+    /**
+     * Describe a compaction.
+     *
+     * @param inputs      tables to merge
+     * @param level       level of the resulting tables
+     * @param maxFileSize approximate size limit of each resulting table
+     */
+    public Compaction(@NotNull final List<FileTable> inputs, final int level, final long maxFileSize) {
+        if (maxFileSize <= 0) {
+            throw new IllegalArgumentException("File size limit must be positive: " + maxFileSize);
+        }
+        this.inputs = Collections.unmodifiableList(inputs);
+        this.level = level;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Merge tables into a single level 0 table.
+     *
+     * @param inputs tables to merge
+     */
+    public Compaction(@NotNull final List<FileTable> inputs) {
+        this(inputs, 0, Long.MAX_VALUE);
+    }
+
+    @NotNull
+    public List<FileTable> getInputs() {
+        return inputs;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+}
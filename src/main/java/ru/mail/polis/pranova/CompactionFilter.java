@@ -0,0 +1,25 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides the fate of every live record rewritten by compaction, so garbage collection by a business rule
+ * comes with compaction instead of a full scan issuing removes.
+ *
+ * <p>Compactions of disjoint key ranges run in parallel, so the filter must be thread-safe.
+ */
+@FunctionalInterface
+public interface CompactionFilter {
+    /**
+     * Filter a record.
+     *
+     * @param key   of the record
+     * @param value of the record
+     * @return the value to keep the record, another value to rewrite it or null to remove it
+     */
+    @Nullable
+    ByteBuffer filter(@NotNull ByteBuffer key, @NotNull ByteBuffer value);
+}
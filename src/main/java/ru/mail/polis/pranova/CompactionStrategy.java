@@ -0,0 +1,37 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Chooses tables to be merged by background compaction.
+ */
+@FunctionalInterface
+public interface CompactionStrategy {
+    /**
+     * Leave compaction to explicit {@link LSMDao#compact()} calls.
+     */
+    CompactionStrategy MANUAL = files -> null;
+
+    /**
+     * Pick tables to be merged.
+     *
+     * @param files current tables on disk
+     * @return compaction to run or null if there is nothing to do
+     */
+    @Nullable
+    Compaction pick(@NotNull List<FileTable> files);
+
+    /**
+     * Describe the merge of all tables requested by {@link LSMDao#compact()}.
+     *
+     * @param files current tables on disk
+     * @return compaction of all the tables
+     */
+    @NotNull
+    default Compaction major(@NotNull final List<FileTable> files) {
+        return new Compaction(files);
+    }
+}
@@ -0,0 +1,335 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Supplier;
+
+/**
+ * Tuning knobs of {@link LSMDao}.
+ * Instances are immutable, every {@code with*} method returns a modified copy.
+ */
+public final class Config {
+    public static final Config DEFAULT = new Config();
+
+    private CommitLog.Durability durability = CommitLog.Durability.PERIODIC;
+    private long syncIntervalMillis = 1000L;
+    private int flushQueueDepth = 2;
+    // Strategies may keep state between compactions, every storage gets its own
+    private Supplier<CompactionStrategy> compactionStrategy =
+            () -> new TombstoneCompaction(new SizeTieredCompaction(4L * 1024 * 1024));
+    private int subcompactions = Runtime.getRuntime().availableProcessors();
+    private RateLimiter rateLimiter;
+    private CompactionFilter compactionFilter;
+    private int bloomBitsPerKey = 10;
+    private int blockSize = 4 * 1024;
+    private Codec codec = Codec.NONE;
+    private int restartInterval = 16;
+    private BlockCache blockCache;
+    private IoMode ioMode = IoMode.MMAP;
+    private long rowCacheSize;
+
+    private Config() {
+    }
+
+    private Config(@NotNull final Config other) {
+        this.durability = other.durability;
+        this.syncIntervalMillis = other.syncIntervalMillis;
+        this.flushQueueDepth = other.flushQueueDepth;
+        this.compactionStrategy = other.compactionStrategy;
+        this.subcompactions = other.subcompactions;
+        this.rateLimiter = other.rateLimiter;
+        this.compactionFilter = other.compactionFilter;
+        this.bloomBitsPerKey = other.bloomBitsPerKey;
+        this.blockSize = other.blockSize;
+        this.codec = other.codec;
+        this.restartInterval = other.restartInterval;
+        this.blockCache = other.blockCache;
+        this.ioMode = other.ioMode;
+        this.rowCacheSize = other.rowCacheSize;
+    }
+
+    /**
+     * Set how hard the commit log tries to persist acknowledged writes.
+     *
+     * @param durability mode of the commit log
+     * @return modified copy
+     */
+    @NotNull
+    public Config withDurability(@NotNull final CommitLog.Durability durability) {
+        final Config copy = new Config(this);
+        copy.durability = durability;
+        return copy;
+    }
+
+    /**
+     * Set the period of background fsync in {@link CommitLog.Durability#PERIODIC} mode.
+     *
+     * @param syncIntervalMillis period in milliseconds
+     * @return modified copy
+     */
+    @NotNull
+    public Config withSyncInterval(final long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive: " + syncIntervalMillis);
+        }
+        final Config copy = new Config(this);
+        copy.syncIntervalMillis = syncIntervalMillis;
+        return copy;
+    }
+
+    /**
+     * Set how many full memtables may wait for the background flush before writers stall.
+     *
+     * @param flushQueueDepth max number of frozen memtables
+     * @return modified copy
+     */
+    @NotNull
+    public Config withFlushQueueDepth(final int flushQueueDepth) {
+        if (flushQueueDepth <= 0) {
+            throw new IllegalArgumentException("Flush queue depth must be positive: " + flushQueueDepth);
+        }
+        final Config copy = new Config(this);
+        copy.flushQueueDepth = flushQueueDepth;
+        return copy;
+    }
+
+    /**
+     * Set the strategy of background compaction, the instance is shared by every storage opened with the config.
+     *
+     * @param compactionStrategy strategy or {@link CompactionStrategy#MANUAL} to disable background compaction
+     * @return modified copy
+     */
+    @NotNull
+    public Config withCompactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+        return withCompactionStrategy(() -> compactionStrategy);
+    }
+
+    /**
+     * Set the strategy of background compaction created for every storage opened with the config,
+     * for strategies which keep state like {@link LeveledCompaction}.
+     *
+     * @param compactionStrategy factory of the strategy
+     * @return modified copy
+     */
+    @NotNull
+    public Config withCompactionStrategy(@NotNull final Supplier<CompactionStrategy> compactionStrategy) {
+        final Config copy = new Config(this);
+        copy.compactionStrategy = compactionStrategy;
+        return copy;
+    }
+
+    /**
+     * Set how many key ranges of a large compaction may be merged in parallel.
+     *
+     * @param subcompactions max number of threads per compaction
+     * @return modified copy
+     */
+    @NotNull
+    public Config withSubcompactions(final int subcompactions) {
+        if (subcompactions <= 0) {
+            throw new IllegalArgumentException("Subcompactions must be positive: " + subcompactions);
+        }
+        final Config copy = new Config(this);
+        copy.subcompactions = subcompactions;
+        return copy;
+    }
+
+    /**
+     * Limit the write rate of flushes and compactions.
+     *
+     * @param rateLimiter limiter, possibly shared with other storages
+     * @return modified copy
+     */
+    @NotNull
+    public Config withRateLimiter(@NotNull final RateLimiter rateLimiter) {
+        final Config copy = new Config(this);
+        copy.rateLimiter = rateLimiter;
+        return copy;
+    }
+
+    /**
+     * Set the filter applied to live records rewritten by compaction.
+     *
+     * @param compactionFilter filter to keep, drop or rewrite records
+     * @return modified copy
+     */
+    @NotNull
+    public Config withCompactionFilter(@NotNull final CompactionFilter compactionFilter) {
+        final Config copy = new Config(this);
+        copy.compactionFilter = compactionFilter;
+        return copy;
+    }
+
+    /**
+     * Set the size of the Bloom filters of new tables, 10 bits per key give about 1% false positives.
+     *
+     * @param bloomBitsPerKey bits per key or 0 to write tables without filters
+     * @return modified copy
+     */
+    @NotNull
+    public Config withBloomBitsPerKey(final int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0) {
+            throw new IllegalArgumentException("Bloom bits per key must not be negative: " + bloomBitsPerKey);
+        }
+        final Config copy = new Config(this);
+        copy.bloomBitsPerKey = bloomBitsPerKey;
+        return copy;
+    }
+
+    /**
+     * Set the size of the blocks of new tables, a lookup reads one block after the sparse index.
+     *
+     * @param blockSize size in bytes, from 512 to 65536
+     * @return modified copy
+     */
+    @NotNull
+    public Config withBlockSize(final int blockSize) {
+        if (blockSize < 512 || blockSize > BlockIndex.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be from 512 to 65536: " + blockSize);
+        }
+        final Config copy = new Config(this);
+        copy.blockSize = blockSize;
+        return copy;
+    }
+
+    /**
+     * Set the compression of the blocks of new tables, tables written with other codecs stay readable.
+     *
+     * @param codec of the blocks or {@link Codec#NONE} to read blocks right from the mapped files
+     * @return modified copy
+     */
+    @NotNull
+    public Config withCodec(@NotNull final Codec codec) {
+        final Config copy = new Config(this);
+        copy.codec = codec;
+        return copy;
+    }
+
+    /**
+     * Set how often keys of new tables are written whole, the keys in between are written without
+     * the prefix shared with the last whole key.
+     *
+     * @param restartInterval number of cells per whole key, 1 to write every key whole
+     * @return modified copy
+     */
+    @NotNull
+    public Config withRestartInterval(final int restartInterval) {
+        if (restartInterval <= 0) {
+            throw new IllegalArgumentException("Restart interval must be positive: " + restartInterval);
+        }
+        final Config copy = new Config(this);
+        copy.restartInterval = restartInterval;
+        return copy;
+    }
+
+    /**
+     * Cache blocks of the tables in memory managed by the storage.
+     *
+     * @param blockCache cache, possibly shared with other storages
+     * @return modified copy
+     */
+    @NotNull
+    public Config withBlockCache(@NotNull final BlockCache blockCache) {
+        final Config copy = new Config(this);
+        copy.blockCache = blockCache;
+        return copy;
+    }
+
+    /**
+     * Set how blocks of the tables are read.
+     *
+     * @param ioMode of the tables
+     * @return modified copy
+     */
+    @NotNull
+    public Config withIoMode(@NotNull final IoMode ioMode) {
+        final Config copy = new Config(this);
+        copy.ioMode = ioMode;
+        return copy;
+    }
+
+    /**
+     * Cache the values of frequently read keys, absent keys included, in front of the tables.
+     *
+     * @param rowCacheSize size of the cache in bytes or 0 to read every key from the tables
+     * @return modified copy
+     */
+    @NotNull
+    public Config withRowCacheSize(final long rowCacheSize) {
+        if (rowCacheSize < 0) {
+            throw new IllegalArgumentException("Row cache size must not be negative: " + rowCacheSize);
+        }
+        final Config copy = new Config(this);
+        copy.rowCacheSize = rowCacheSize;
+        return copy;
+    }
+
+    @NotNull
+    public CommitLog.Durability getDurability() {
+        return durability;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public int getFlushQueueDepth() {
+        return flushQueueDepth;
+    }
+
+    /**
+     * Get the strategy of background compaction for a storage being opened.
+     *
+     * @return new instance unless a shared one is set
+     */
+    @NotNull
+    public CompactionStrategy getCompactionStrategy() {
+        return compactionStrategy.get();
+    }
+
+    public int getSubcompactions() {
+        return subcompactions;
+    }
+
+    @Nullable
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    @Nullable
+    public CompactionFilter getCompactionFilter() {
+        return compactionFilter;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @NotNull
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int getRestartInterval() {
+        return restartInterval;
+    }
+
+    @Nullable
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    @NotNull
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public long getRowCacheSize() {
+        return rowCacheSize;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression by {@link Deflater}, the level isn't needed to decompress.
+ *
+ * <p>Native streams are expensive to create, so every thread reuses its own.
+ */
+public final class DeflateCodec implements Codec {
+    static final int DEFAULT_LEVEL = 6;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Create a codec.
+     *
+     * @param level from 1 (fastest) to 9 (smallest)
+     */
+    public DeflateCodec(final int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Deflate level must be from 1 to 9: " + level);
+        }
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @NotNull
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // Incompressible data grows by a few bytes per 16KB stored block
+        ByteBuffer result = ByteBuffer.allocate(raw.remaining() + raw.remaining() / 1000 + 64);
+        while (!deflater.finished()) {
+            if (!result.hasRemaining()) {
+                final ByteBuffer larger = ByteBuffer.allocate(result.capacity() * 2);
+                result.flip();
+                larger.put(result);
+                result = larger;
+            }
+            deflater.deflate(result);
+        }
+        result.flip();
+        return result;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) throws IOException {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        final ByteBuffer result = ByteBuffer.allocate(rawSize);
+        try {
+            while (result.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(result) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block", e);
+        }
+        if (result.hasRemaining()) {
+            throw new IOException("Truncated block");
+        }
+        result.flip();
+        return result;
+    }
+}
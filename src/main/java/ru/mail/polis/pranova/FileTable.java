@@ -1,24 +1,58 @@
 package ru.mail.polis.pranova;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileTable implements Table {
-    private final ByteBuffer cells;
+    // Writes are throttled in chunks to keep the limiter off the per-cell path
+    private static final long THROTTLE_CHUNK = 64 * 1024;
+    private static final byte EXPIRY_FLAG = 1;
+    private static final byte TOMBSTONE_FLAG = 2;
+    private static final long SIGN_BITS = 0x8080808080808080L;
+    // A mapped buffer is limited to 2GB, larger tables are mapped in segments
+    private static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    // The table may be a view of rows [first, first + rows) of the file
+    private final int first;
     private final int rows;
-    private final LongBuffer offsets;
+    // Live views of the file, the file is deleted with the last one
+    private final AtomicInteger views;
+    private final BlockIndex index;
+    private final int fileRows;
+    // Cells of older tables have no flags
+    private final boolean flags;
+    // Cells with prefix-compressed keys have a whole key every restart interval rows of a block,
+    // 0 for older tables with sizes of fixed length
+    private final int restartInterval;
     private final File file;
+    private final long size;
+    private final int level;
+    private final ByteBuffer firstKey;
+    private final ByteBuffer lastKey;
+    // Range tombstones of the whole file, shared by its views
+    private final List<RangeTombstone> rangeTombstones;
+    // Null for tables written without the filter
+    @Nullable
+    private final BloomFilter bloom;
+    // Tables written before the footer are scanned lazily, null until then
+    private volatile TableStats stats;
 
     /**
      * Create an object for file on disk.
@@ -27,125 +61,651 @@ public class FileTable implements Table {
      * @throws IOException if an I/O error is thrown by a visitor method
      */
     public FileTable(@NotNull final File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file  to get a table
+     * @param level of the table in the leveled layout, 0 for freshly flushed tables
+     * @throws IOException if an I/O error is thrown by a visitor method
+     */
+    public FileTable(@NotNull final File file, final int level) throws IOException {
+        this(file, level, Codec.NONE);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file  to get a table
+     * @param level of the table in the leveled layout, 0 for freshly flushed tables
+     * @param codec to decompress the table with unless it's written by a built-in codec
+     * @throws IOException if an I/O error is thrown by a visitor method or the codec of the table is unknown
+     */
+    public FileTable(@NotNull final File file, final int level, @NotNull final Codec codec) throws IOException {
+        this(file, level, codec, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file        to get a table
+     * @param level       of the table in the leveled layout, 0 for freshly flushed tables
+     * @param codec       to decompress the table with unless it's written by a built-in codec
+     * @param segmentSize maximum size of a part of the file mapped at once unless a single block is larger
+     * @throws IOException if an I/O error is thrown by a visitor method or the codec of the table is unknown
+     */
+    public FileTable(@NotNull final File file,
+                     final int level,
+                     @NotNull final Codec codec,
+                     final int segmentSize) throws IOException {
+        this(file, level, codec, segmentSize, IoMode.MMAP, null);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file   to get a table
+     * @param level  of the table in the leveled layout, 0 for freshly flushed tables
+     * @param config with the codec, the I/O mode and the block cache of the storage
+     * @throws IOException if an I/O error is thrown by a visitor method or the codec of the table is unknown
+     */
+    public FileTable(@NotNull final File file, final int level, @NotNull final Config config) throws IOException {
+        this(file, level, config.getCodec(), MAX_SEGMENT_SIZE, config.getIoMode(), config.getBlockCache());
+    }
+
+    private FileTable(@NotNull final File file,
+                      final int level,
+                      @NotNull final Codec codec,
+                      final int segmentSize,
+                      @NotNull final IoMode mode,
+                      @Nullable final BlockCache cache) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
         this.file = file;
-        final long fileSize = file.length();
-        final ByteBuffer mapped;
+        this.level = level;
         try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            assert file.length() <= Integer.MAX_VALUE;
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize).order(ByteOrder.BIG_ENDIAN);
+            final long fileSize = fc.size();
+            this.size = fileSize;
+            if (Footer.isPresent(fc)) {
+                final Footer footer = Footer.read(fc);
+                final ByteBuffer statsBuffer = footer.slice(Footer.STATS);
+                final ByteBuffer indexBuffer = footer.slice(Footer.INDEX);
+                final ByteBuffer offsetBuffer = footer.slice(Footer.OFFSETS);
+                if (offsetBuffer == null && indexBuffer == null || statsBuffer == null) {
+                    throw new IOException("Incomplete table " + file);
+                }
+                if (indexBuffer == null) {
+                    // Cells are followed by offsets
+                    this.restartInterval = 0;
+                    this.index = BlockIndex.of(offsetBuffer.asLongBuffer(), map(fc, footer.offset(Footer.OFFSETS)));
+                } else {
+                    Codec blockCodec = null;
+                    final ByteBuffer codecBuffer = footer.slice(Footer.CODEC);
+                    if (codecBuffer != null) {
+                        blockCodec = codec(StandardCharsets.UTF_8.decode(codecBuffer).toString(), codec);
+                    }
+                    int restarts = 0;
+                    final ByteBuffer restartBuffer = footer.slice(Footer.RESTARTS);
+                    if (restartBuffer != null) {
+                        restarts = restartBuffer.getInt(0);
+                        if (restarts <= 0) {
+                            throw new IOException("Bad restart interval " + restarts + " of " + file);
+                        }
+                    }
+                    this.restartInterval = restarts;
+                    // Blocks are followed by the index
+                    this.index = BlockIndex.read(indexBuffer, file, fc, footer.offset(Footer.INDEX), segmentSize,
+                            blockCodec, restarts > 0, mode, cache);
+                }
+                this.stats = TableStats.from(statsBuffer);
+                this.flags = footer.getVersion() >= Footer.FLAGS_VERSION;
+                this.rangeTombstones = readRanges(footer.slice(Footer.RANGES));
+                final ByteBuffer bloomBuffer = footer.slice(Footer.BLOOM);
+                this.bloom = bloomBuffer == null ? null : BloomFilter.from(bloomBuffer);
+            } else {
+                // Legacy format ends with offsets and the number of rows
+                final ByteBuffer mapped = map(fc, fileSize);
+                this.flags = false;
+                this.restartInterval = 0;
+                this.rangeTombstones = Collections.emptyList();
+                this.bloom = null;
+                final long rowsValue = mapped.getLong((int) (fileSize - Long.BYTES));
+                assert rowsValue <= Integer.MAX_VALUE;
+                final int cellsSize = (int) (fileSize - Long.BYTES * rowsValue - Long.BYTES);
+                final ByteBuffer offsetBuffer = mapped.duplicate();
+                offsetBuffer.position(cellsSize);
+                offsetBuffer.limit(mapped.limit() - Long.BYTES);
+                final ByteBuffer cellBuffer = mapped.duplicate();
+                cellBuffer.limit(cellsSize);
+                this.index = BlockIndex.of(offsetBuffer.slice().asLongBuffer(), cellBuffer.slice());
+            }
+        }
+        this.fileRows = index.rows();
+        this.first = 0;
+        this.rows = fileRows;
+        this.views = new AtomicInteger(1);
+
+        this.firstKey = rows == 0 ? null : keyAt(0);
+        this.lastKey = rows == 0 ? null : keyAt(rows - 1);
+    }
+
+    // Tables without blocks are mapped at once
+    @NotNull
+    private static ByteBuffer map(@NotNull final FileChannel fc, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Table without blocks is too large: " + size);
+        }
+        return fc.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+    }
+
+    private FileTable(@NotNull final FileTable table, final int from, final int to) {
+        assert table.first <= from && from < to && to <= table.first + table.rows;
+        this.first = from;
+        this.rows = to - from;
+        this.views = table.views;
+        this.index = table.index;
+        this.fileRows = table.fileRows;
+        this.flags = table.flags;
+        this.restartInterval = table.restartInterval;
+        this.rangeTombstones = table.rangeTombstones;
+        this.bloom = table.bloom;
+        this.file = table.file;
+        this.level = table.level;
+        this.stats = table.stats;
+        this.size = (to < fileRows ? index.positionOf(to) : index.end()) - index.positionOf(from);
+        this.firstKey = keyAt(from);
+        this.lastKey = keyAt(to - 1);
+        views.incrementAndGet();
+    }
+
+    /**
+     * Get a view of the rows of the table, the file stays on disk until every view is deleted.
+     *
+     * @param from first row of the view (inclusive)
+     * @param to   last row of the view (exclusive)
+     * @return view of the rows
+     */
+    @NotNull
+    FileTable view(final int from, final int to) {
+        return new FileTable(this, from, to);
+    }
+
+    /**
+     * Get the first row of the table in the file.
+     *
+     * @return row number
+     */
+    int firstRow() {
+        return first;
+    }
+
+    /**
+     * Get the row next to the last row of the table in the file.
+     *
+     * @return row number
+     */
+    int endRow() {
+        return first + rows;
+    }
+
+    /**
+     * Find the first row with the key greater than the given one.
+     *
+     * @param key to look for
+     * @return row number in the file, {@link #endRow()} if there is no such row
+     */
+    int rowAfter(@NotNull final ByteBuffer key) {
+        if (rows == 0) {
+            return first;
+        }
+        final int block = index.blockOf(key);
+        final int row;
+        try {
+            row = search(key, block, borrow(block), first);
+        } finally {
+            index.giveBack();
         }
+        return row >= 0 ? row + 1 : -row - 1;
+    }
 
-        // Rows
-        final long rowsValue = mapped.getLong((int) (fileSize - Long.BYTES));
-        assert rowsValue <= Integer.MAX_VALUE;
-        this.rows = (int) rowsValue;
+    /**
+     * Find the first row with the key greater than or equal to the given one.
+     *
+     * @param key to look for
+     * @return row number in the file, {@link #endRow()} if there is no such row
+     */
+    int rowFrom(@NotNull final ByteBuffer key) {
+        return position(key, Order.DIRECT);
+    }
 
-        // Offsets
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Long.BYTES * rows - Long.BYTES);
-        offsetBuffer.limit(mapped.limit() - Long.BYTES);
-        this.offsets = offsetBuffer.slice().asLongBuffer();
+    private static int sharedPrefix(@NotNull final ByteBuffer previous, @NotNull final ByteBuffer key) {
+        final int mismatch = previous.mismatch(key);
+        return mismatch < 0 ? key.remaining() : mismatch;
+    }
 
-        // Cells
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
+    @NotNull
+    private static Codec codec(@NotNull final String name, @NotNull final Codec configured) throws IOException {
+        if (configured.name().equals(name)) {
+            return configured;
+        }
+        if (Codec.DEFLATE.name().equals(name)) {
+            return Codec.DEFLATE;
+        }
+        throw new IOException("Unknown codec " + name);
+    }
+
+    @NotNull
+    private static List<RangeTombstone> readRanges(@Nullable final ByteBuffer section) {
+        if (section == null) {
+            return Collections.emptyList();
+        }
+        final List<RangeTombstone> result = new ArrayList<>();
+        while (section.hasRemaining()) {
+            result.add(RangeTombstone.readFrom(section));
+        }
+        return Collections.unmodifiableList(result);
     }
 
     static void write(@NotNull final Iterator<Cell> cells, @NotNull final File to) throws IOException {
+        write(cells, Collections.emptyList(), to, Long.MAX_VALUE, null, Config.DEFAULT.withBloomBitsPerKey(0));
+    }
+
+    /**
+     * Write cells until the size of written data reaches the limit, the rest stays in the iterator.
+     *
+     * @param cells   to write in ascending order of keys
+     * @param ranges  range tombstones to write
+     * @param to      file to create
+     * @param limit   approximate size of the file
+     * @param limiter of the write rate or null to write at full speed
+     * @param config  of the Bloom filter, the blocks and their codec
+     * @throws IOException if the file can't be written
+     */
+    static void write(@NotNull final Iterator<Cell> cells,
+                      @NotNull final Collection<RangeTombstone> ranges,
+                      @NotNull final File to,
+                      final long limit,
+                      @Nullable final RateLimiter limiter,
+                      @NotNull final Config config) throws IOException {
+        final int bitsPerKey = config.getBloomBitsPerKey();
+        final Codec codec = config.getCodec();
+        final int restartInterval = config.getRestartInterval();
         try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW,
                 StandardOpenOption.WRITE)) {
-            final List<Long> offsets = new ArrayList<>();
-            long offset = 0;
-            while (cells.hasNext()) {
+            final TableOutput out = new TableOutput(fc);
+            final BlockIndex.Builder index = new BlockIndex.Builder(out, config.getBlockSize(),
+                    codec == Codec.NONE ? null : codec);
+            final TableStats.Collector stats = new TableStats.Collector();
+            long[] keyHashes = new long[bitsPerKey == 0 ? 0 : 1024];
+            int rows = 0;
+            long throttled = 0;
+            ByteBuffer restartKey = null;
+            long restartTimestamp = 0;
+            while (index.size() < limit && cells.hasNext()) {
+                if (limiter != null && index.size() - throttled >= THROTTLE_CHUNK) {
+                    limiter.acquire(index.size() - throttled);
+                    throttled = index.size();
+                }
                 final Cell cell = cells.next();
-                offsets.add(offset);
+                if (bitsPerKey != 0) {
+                    if (rows == keyHashes.length) {
+                        keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+                    }
+                    keyHashes[rows] = BloomFilter.hash(cell.getKey());
+                }
+                rows++;
+                stats.add(cell);
+
+                final ByteBuffer key = cell.getKey();
+                final Value value = cell.getValue();
+                final boolean restart = index.next() % restartInterval == 0;
+                if (restart) {
+                    restartKey = key;
+                    restartTimestamp = value.getTimeStamp();
+                }
+                final int shared = restart ? 0 : sharedPrefix(restartKey, key);
+                final int unshared = key.remaining() - shared;
+                final long timestamp = restart
+                        ? value.getTimeStamp()
+                        : Bytes.zigZag(value.getTimeStamp() - restartTimestamp);
+                final boolean expires = value.getExpiry() != Value.NEVER;
+                final ByteBuffer data = value.isRemoved() ? null : value.getData();
+                final int size = Bytes.varLongSize(shared) + Bytes.varLongSize(unshared) + unshared
+                        + Byte.BYTES + Bytes.varLongSize(timestamp)
+                        + (expires ? Bytes.varLongSize(value.getExpiry()) : 0)
+                        + (data == null ? 0 : Bytes.varLongSize(data.remaining()) + data.remaining());
+                final ByteBuffer block = index.add(size, key);
 
                 // Key
-                offset += writeBuffer(fc, cell.getKey());
+                Bytes.putVarLong(block, shared);
+                Bytes.putVarLong(block, unshared);
+                final ByteBuffer suffix = key.duplicate();
+                suffix.position(suffix.position() + shared);
+                block.put(suffix);
 
-                // Value
-                final Value value = cell.getValue();
+                // Flags
+                block.put((byte) ((expires ? EXPIRY_FLAG : 0) | (data == null ? TOMBSTONE_FLAG : 0)));
 
                 // Timestamp
-                if (value.isRemoved()) {
-                    fc.write(Bytes.fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(Bytes.fromLong(cell.getValue().getTimeStamp()));
+                Bytes.putVarLong(block, timestamp);
+                if (expires) {
+                    Bytes.putVarLong(block, value.getExpiry());
                 }
-                offset += Long.BYTES;
 
                 // Value
-                if (!value.isRemoved()) {
-                    offset += writeBuffer(fc, value.getData());
+                if (data != null) {
+                    Bytes.putVarLong(block, data.remaining());
+                    block.put(data.duplicate());
+                }
+            }
+
+            index.finish();
+
+            final Footer footer = new Footer();
+
+            // Index
+            long offset = out.position();
+            index.writeTo();
+            footer.add(Footer.INDEX, offset, out.position() - offset);
+
+            // Restart interval
+            offset = out.position();
+            out.putInt(restartInterval);
+            footer.add(Footer.RESTARTS, offset, out.position() - offset);
+
+            // Codec
+            if (codec != Codec.NONE) {
+                offset = out.position();
+                out.put(StandardCharsets.UTF_8.encode(codec.name()));
+                footer.add(Footer.CODEC, offset, out.position() - offset);
+            }
+
+            // Range tombstones
+            if (!ranges.isEmpty()) {
+                int rangesSize = 0;
+                for (final RangeTombstone range : ranges) {
+                    stats.add(range);
+                    rangesSize += range.sizeInBytes();
+                }
+                final ByteBuffer rangesBuffer = ByteBuffer.allocate(rangesSize);
+                for (final RangeTombstone range : ranges) {
+                    range.writeTo(rangesBuffer);
                 }
+                rangesBuffer.flip();
+                footer.add(Footer.RANGES, out.position(), rangesSize);
+                out.put(rangesBuffer);
             }
 
-            // Offsets
-            for (final Long anOffset : offsets) {
-                fc.write(Bytes.fromLong(anOffset));
+            // Bloom filter
+            if (bitsPerKey != 0) {
+                offset = out.position();
+                out.put(BloomFilter.of(keyHashes, rows, bitsPerKey).toBuffer());
+                footer.add(Footer.BLOOM, offset, out.position() - offset);
+            }
+
+            // Stats
+            offset = out.position();
+            out.put(stats.build().toBuffer());
+            footer.add(Footer.STATS, offset, out.position() - offset);
+
+            out.put(footer.toBuffer());
+            if (limiter != null) {
+                limiter.acquire(out.position() - throttled);
             }
+            out.flush();
 
-            // Cells
-            fc.write(Bytes.fromLong(offsets.size()));
+            // The commit log is truncated right after the table is renamed
+            fc.force(false);
         }
     }
 
-    private static long writeBuffer(@NotNull final FileChannel fc,
-                                    @NotNull final ByteBuffer buffer) throws IOException {
-        final int valueSize = buffer.remaining();
-        fc.write(Bytes.fromInt(valueSize));
-        int offset = Integer.BYTES;
-        fc.write(buffer);
-        offset += valueSize;
-        return offset;
+    /**
+     * Get the contents of a block, the table is not read by the caller with checked exceptions.
+     */
+    @NotNull
+    private ByteBuffer block(final int block) {
+        try {
+            return index.block(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read block " + block + " of " + file, e);
+        }
     }
 
-    private ByteBuffer keyAt(@NotNull final int i) {
-        assert 0 <= i && i < rows;
-        final long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
-        final int keySize = cells.getInt((int) offset);
-        final ByteBuffer key = cells.duplicate();
-        key.position((int) (offset + Integer.BYTES));
-        key.limit(key.position() + keySize);
-        return key.slice();
+    /**
+     * Get the contents of a block for a lookup, see {@link BlockIndex#borrow(int)}. The block is given back
+     * by {@link BlockIndex#giveBack()}.
+     */
+    @NotNull
+    private ByteBuffer borrow(final int block) {
+        try {
+            return index.borrow(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read block " + block + " of " + file, e);
+        }
+    }
+
+    /**
+     * Copy the data of a value found in a borrowed block unless the block is mapped.
+     */
+    @NotNull
+    private Value owned(@NotNull final Value value) {
+        if (index.isInPlace() || value.isRemoved()) {
+            return value;
+        }
+        final ByteBuffer data = value.getData();
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data);
+        copy.flip();
+        return new Value(value.getTimeStamp(), copy, value.getExpiry());
     }
 
-    private Cell cellAt(@NotNull final int i) {
-        assert 0 <= i && i < rows;
-        long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
+    private ByteBuffer keyAt(final int i) {
+        assert 0 <= i && i < fileRows;
+        final int block = index.blockOfRow(i);
+        return key(block(block), block, i);
+    }
+
+    private Cell cellAt(final int i) {
+        assert 0 <= i && i < fileRows;
+        final int block = index.blockOfRow(i);
+        return cell(block(block), block, i);
+    }
+
+    @NotNull
+    private Cell cell(@NotNull final ByteBuffer data, final int block, final int row) {
+        return new Cell(key(data, block, row), value(data, block, row));
+    }
+
+    /**
+     * Get the row of the whole key the key of the row is compressed against.
+     */
+    private int restartOf(final int block, final int row) {
+        final int firstRow = index.firstRow(block);
+        return firstRow + (row - firstRow) / restartInterval * restartInterval;
+    }
+
+    /**
+     * Get the offset of the key bytes of a cell with a prefix-compressed key.
+     */
+    private static int suffixOffset(@NotNull final ByteBuffer data, final int cellOffset) {
+        final int offset = cellOffset + Bytes.varLongSize(Bytes.getVarLong(data, cellOffset));
+        return offset + Bytes.varLongSize(Bytes.getVarLong(data, offset));
+    }
+
+    /**
+     * Get the offset of the flags of a cell with a prefix-compressed key.
+     */
+    private static int flagsOffset(@NotNull final ByteBuffer data, final int cellOffset) {
+        final int offset = cellOffset + Bytes.varLongSize(Bytes.getVarLong(data, cellOffset));
+        final long unshared = Bytes.getVarLong(data, offset);
+        return offset + Bytes.varLongSize(unshared) + (int) unshared;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer data, final int offset, final int size) {
+        final ByteBuffer result = data.duplicate();
+        result.position(offset);
+        result.limit(offset + size);
+        return result.slice();
+    }
+
+    @NotNull
+    private ByteBuffer key(@NotNull final ByteBuffer data, final int block, final int row) {
+        final int offset = index.cellOffset(data, block, row);
+        if (restartInterval == 0) {
+            return slice(data, offset + Integer.BYTES, data.getInt(offset));
+        }
+        final int shared = (int) Bytes.getVarLong(data, offset);
+        final int sizeOffset = offset + Bytes.varLongSize(shared);
+        final int unshared = (int) Bytes.getVarLong(data, sizeOffset);
+        final int suffix = sizeOffset + Bytes.varLongSize(unshared);
+        if (shared == 0) {
+            return slice(data, suffix, unshared);
+        }
+        final byte[] key = new byte[shared + unshared];
+        final int restart = index.cellOffset(data, block, restartOf(block, row));
+        slice(data, suffixOffset(data, restart), shared).get(key, 0, shared);
+        slice(data, suffix, unshared).get(key, shared, unshared);
+        return ByteBuffer.wrap(key);
+    }
+
+    @NotNull
+    private Value value(@NotNull final ByteBuffer data, final int block, final int row) {
+        if (restartInterval > 0) {
+            return compressedValue(data, block, row);
+        }
+        int offset = index.cellOffset(data, block, row);
 
         // Key
-        final int keySize = cells.getInt((int) offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = keyAt(i);
-        offset += keySize;
+        final int keySize = data.getInt(offset);
+        offset += Integer.BYTES + keySize;
 
         // Timestamp
-        final long timestamp = cells.getLong((int) offset);
+        final long timestamp = data.getLong(offset);
         offset += Long.BYTES;
 
+        // Flags
+        long expiry = Value.NEVER;
+        if (flags) {
+            final byte cellFlags = data.get(offset);
+            offset += Byte.BYTES;
+            if ((cellFlags & EXPIRY_FLAG) != 0) {
+                expiry = data.getLong(offset);
+                offset += Long.BYTES;
+            }
+        }
+
         // Value
         if (timestamp < 0) {
-            return new Cell(key.slice(), new Value(-timestamp, null));
+            return new Value(-timestamp, null);
         } else {
-            final int valueSize = cells.getInt((int) offset);
+            final int valueSize = data.getInt(offset);
             offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
-            value.position((int) offset);
-            value.limit(value.position() + valueSize);
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+            return new Value(timestamp, slice(data, offset, valueSize), expiry);
         }
     }
 
-    private int position(@NotNull final ByteBuffer from, @NotNull final Order order) {
-        int left = 0;
-        int right = rows - 1;
+    @NotNull
+    private Value compressedValue(@NotNull final ByteBuffer data, final int block, final int row) {
+        // Flags
+        int offset = flagsOffset(data, index.cellOffset(data, block, row));
+        final byte cellFlags = data.get(offset);
+        offset += Byte.BYTES;
+
+        // Timestamp, whole at restarts and relative to the restart otherwise
+        long timestamp = Bytes.getVarLong(data, offset);
+        offset += Bytes.varLongSize(timestamp);
+        final int restart = restartOf(block, row);
+        if (row != restart) {
+            final int restartFlags = flagsOffset(data, index.cellOffset(data, block, restart));
+            timestamp = Bytes.getVarLong(data, restartFlags + Byte.BYTES) + Bytes.unZigZag(timestamp);
+        }
+        long expiry = Value.NEVER;
+        if ((cellFlags & EXPIRY_FLAG) != 0) {
+            expiry = Bytes.getVarLong(data, offset);
+            offset += Bytes.varLongSize(expiry);
+        }
+
+        // Value
+        if ((cellFlags & TOMBSTONE_FLAG) != 0) {
+            return new Value(timestamp, null);
+        }
+        final int valueSize = (int) Bytes.getVarLong(data, offset);
+        offset += Bytes.varLongSize(valueSize);
+        return new Value(timestamp, slice(data, offset, valueSize), expiry);
+    }
+
+    /**
+     * Compare the key with the key of the row in the order of {@link ByteBuffer#compareTo}
+     * without slicing the block.
+     */
+    private int compareKey(@NotNull final ByteBuffer key, @NotNull final ByteBuffer data,
+                           final int block, final int row) {
+        final int offset = index.cellOffset(data, block, row);
+        if (restartInterval == 0) {
+            final int size = data.getInt(offset);
+            final int cmp = compareBytes(key, 0, data, offset + Integer.BYTES, Math.min(key.remaining(), size));
+            return cmp == 0 ? key.remaining() - size : cmp;
+        }
+        final int shared = (int) Bytes.getVarLong(data, offset);
+        final int sizeOffset = offset + Bytes.varLongSize(shared);
+        final int unshared = (int) Bytes.getVarLong(data, sizeOffset);
+        if (shared > 0) {
+            final int restart = suffixOffset(data, index.cellOffset(data, block, restartOf(block, row)));
+            final int cmp = compareBytes(key, 0, data, restart, Math.min(key.remaining(), shared));
+            if (cmp != 0 || key.remaining() <= shared) {
+                return cmp == 0 ? key.remaining() - shared - unshared : cmp;
+            }
+        }
+        final int length = Math.min(key.remaining() - shared, unshared);
+        final int cmp = compareBytes(key, shared, data, sizeOffset + Bytes.varLongSize(unshared), length);
+        return cmp == 0 ? key.remaining() - shared - unshared : cmp;
+    }
+
+    /**
+     * Compare bytes a word at a time, the sign of the result is the order of the first mismatching bytes.
+     */
+    private static int compareBytes(@NotNull final ByteBuffer key, final int from,
+                                    @NotNull final ByteBuffer data, final int offset, final int length) {
+        final int start = key.position() + from;
+        int j = 0;
+        if (key.order() == ByteOrder.BIG_ENDIAN && data.order() == ByteOrder.BIG_ENDIAN) {
+            for (; j + Long.BYTES <= length; j += Long.BYTES) {
+                final long word = key.getLong(start + j);
+                final long other = data.getLong(offset + j);
+                if (word != other) {
+                    // Bytes are compared as signed, flipped sign bits order them as unsigned words
+                    return Long.compareUnsigned(word ^ SIGN_BITS, other ^ SIGN_BITS);
+                }
+            }
+        }
+        for (; j < length; j++) {
+            final int cmp = Byte.compare(key.get(start + j), data.get(offset + j));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Search the rows of the table within the block which may hold the key.
+     *
+     * @param key   to look for
+     * @param block the only block which may hold the key
+     * @param data  of the block
+     * @param from  first row to search
+     * @return row of the key or {@code -(insertion row) - 1} if there is no such key
+     */
+    private int search(@NotNull final ByteBuffer key, final int block, @NotNull final ByteBuffer data, final int from) {
+        int left = Math.min(Math.max(from, index.firstRow(block)), first + rows);
+        int right = Math.max(Math.min(first + rows, index.endRow(block)), first) - 1;
         while (left <= right) {
             final int mid = left + (right - left) / 2;
-            final int cmp = from.compareTo(keyAt(mid));
+            final int cmp = compareKey(key, data, block, mid);
             if (cmp < 0) {
                 right = mid - 1;
             } else if (cmp > 0) {
@@ -154,26 +714,90 @@ public class FileTable implements Table {
                 return mid;
             }
         }
-        return order == Order.DIRECT ? left : right;
+        return -left - 1;
     }
 
-    @NotNull
-    @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return new Iterator<Cell>() {
-            int next = position(from, Order.DIRECT);
+    /**
+     * Find the value of the key.
+     *
+     * @param key to look for
+     * @return value, tombstone or null if the table has no such key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        if (rows == 0) {
+            return null;
+        }
+        final int block = index.blockOf(key);
+        try {
+            final ByteBuffer data = borrow(block);
+            final int row = search(key, block, data, first);
+            return row < 0 ? null : owned(value(data, block, row));
+        } finally {
+            index.giveBack();
+        }
+    }
 
-            @Override
-            public boolean hasNext() {
-                return next < rows;
+    /**
+     * Look up keys in one pass, each search starts where the previous one ended.
+     *
+     * @param keys  to look for in ascending order
+     * @param found values found so far by the index of the key, replaced with newer values of the table
+     */
+    void get(@NotNull final ByteBuffer[] keys, @NotNull final Value[] found) {
+        final long maxTimestamp = stats().getMaxTimestamp();
+        int left = first;
+        int block = -1;
+        ByteBuffer data = null;
+        try {
+            for (int i = 0; i < keys.length && left < first + rows; i++) {
+                if (found[i] != null && found[i].getTimeStamp() > maxTimestamp || !mightContain(keys[i])) {
+                    continue;
+                }
+                final int keyBlock = index.blockOf(keys[i]);
+                if (keyBlock != block) {
+                    index.giveBack();
+                    block = keyBlock;
+                    data = borrow(block);
+                }
+                final int row = search(keys[i], block, data, left);
+                if (row < 0) {
+                    left = -row - 1;
+                    continue;
+                }
+                final Value value = owned(value(data, block, row));
+                if (found[i] == null || value.getTimeStamp() > found[i].getTimeStamp()) {
+                    found[i] = value;
+                }
+                // The next key may be the same
+                left = row;
             }
+        } finally {
+            index.giveBack();
+        }
+    }
 
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next++);
-            }
-        };
+    private int position(@NotNull final ByteBuffer from, @NotNull final Order order) {
+        if (rows == 0) {
+            return order == Order.DIRECT ? first : first - 1;
+        }
+        final int block = index.blockOf(from);
+        final int row;
+        try {
+            row = search(from, block, borrow(block), first);
+        } finally {
+            index.giveBack();
+        }
+        if (row >= 0) {
+            return row;
+        }
+        return order == Order.DIRECT ? -row - 1 : -row - 2;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return new Cells(position(from, Order.DIRECT), Order.DIRECT);
     }
 
     @Override
@@ -187,30 +811,186 @@ public class FileTable implements Table {
     }
 
     @Override
-    public long sizeInBytes() throws IOException {
-        throw new UnsupportedOperationException();
+    public long sizeInBytes() {
+        return size;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Check whether the table may contain keys of the range.
+     *
+     * @param from first key of the range (inclusive)
+     * @param to   last key of the range (inclusive)
+     * @return false if the table has no keys in the range
+     */
+    public boolean overlaps(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        return rows > 0 && firstKey.compareTo(to) <= 0 && from.compareTo(lastKey) <= 0;
+    }
+
+    /**
+     * Check the Bloom filter of the file, the table itself is not touched.
+     *
+     * @param key to look for
+     * @return false if the file surely has no such key, true if it may have or has no filter
+     */
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return bloom == null || bloom.mightContain(key);
+    }
+
+    /**
+     * Get the smallest key, the table must not be empty.
+     *
+     * @return first key
+     */
+    @NotNull
+    public ByteBuffer firstKey() {
+        assert rows > 0;
+        return firstKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the largest key, the table must not be empty.
+     *
+     * @return last key
+     */
+    @NotNull
+    public ByteBuffer lastKey() {
+        assert rows > 0;
+        return lastKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get keys evenly spread over the table.
+     *
+     * @param count number of keys to get
+     * @return up to count keys in ascending order
+     */
+    @NotNull
+    public List<ByteBuffer> sampleKeys(final int count) {
+        final List<ByteBuffer> result = new ArrayList<>();
+        final int step = Math.max(rows / (count + 1), 1);
+        for (int i = step; i < rows && result.size() < count; i += step) {
+            result.add(keyAt(first + i).asReadOnlyBuffer());
+        }
+        return result;
+    }
+
+    /**
+     * Get the range tombstones of the file, views of the file share them whatever rows they have.
+     *
+     * @return range tombstones in no particular order
+     */
+    @NotNull
+    public List<RangeTombstone> rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @NotNull
+    public File getFile() {
+        return file;
     }
 
+    /**
+     * Get the summary of the whole file, tables of the legacy format are scanned on the first call.
+     *
+     * @return stats of the table
+     */
+    @NotNull
+    public TableStats stats() {
+        TableStats result = stats;
+        if (result == null) {
+            final TableStats.Collector collector = new TableStats.Collector();
+            for (int i = 0; i < fileRows; i++) {
+                collector.add(cellAt(i));
+            }
+            result = collector.build();
+            stats = result;
+        }
+        return result;
+    }
+
+    /**
+     * Delete the table, the file is deleted with the last view of it.
+     *
+     * @throws IOException if the file can't be deleted
+     */
     public void deleteFileTable() throws IOException {
-        Files.delete(file.toPath());
+        if (views.decrementAndGet() == 0) {
+            Files.delete(file.toPath());
+            index.release();
+        }
+    }
+
+    /**
+     * Keep the table readable until {@link #release()} even if it's deleted meanwhile.
+     *
+     * @return false if the table is deleted and can't be read anymore
+     */
+    boolean retain() {
+        return index.retain();
+    }
+
+    /**
+     * Let the file of a deleted table be closed.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    void release() throws IOException {
+        index.release();
+    }
+
+    /**
+     * Close the file without deleting it once the reads in progress are done, the views of the table are
+     * closed too.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        index.release();
     }
 
     @Override
     public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
-        return new Iterator<Cell>() {
-            int next = position(from, Order.REVERSE);
+        return new Cells(position(from, Order.REVERSE), Order.REVERSE);
+    }
 
-            @Override
-            public boolean hasNext() {
-                return next >= 0;
-            }
+    /**
+     * Iterates over rows of the table reading every block once.
+     */
+    private final class Cells implements Iterator<Cell> {
+        private final Order order;
+        private int next;
+        private int block = -1;
+        private ByteBuffer data;
+
+        Cells(final int next, @NotNull final Order order) {
+            this.next = next;
+            this.order = order;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return order == Order.DIRECT ? next < first + rows : next >= first;
+        }
 
-            @Override
-            public Cell next() {
-                assert hasNext();
-                return cellAt(next--);
+        @Override
+        public Cell next() {
+            assert hasNext();
+            if (block < 0 || next < index.firstRow(block) || next >= index.endRow(block)) {
+                block = index.blockOfRow(next);
+                data = block(block);
             }
-        };
+            final Cell cell = cell(data, block, next);
+            next += order == Order.DIRECT ? 1 : -1;
+            return cell;
+        }
     }
 
     public enum Order {
@@ -0,0 +1,160 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of sections at the end of a table file.
+ *
+ * <p>The file ends with {@code [id, offset, length] * count, count, version, MAGIC}. Tables written
+ * before the footer end with a non-negative row count instead of the negative {@link #MAGIC}.
+ * Readers skip sections they don't know, so new sections don't break older code.
+ *
+ * <p>Since version 2 every cell has a flags byte after the timestamp. Since version 3 cells are split
+ * into blocks located by the {@link #INDEX} section instead of {@link #OFFSETS}. Since version 4 blocks
+ * may be compressed by the codec named in the {@link #CODEC} section. Since version 5 keys are compressed
+ * against the last restart point of the {@link #RESTARTS} interval and sizes are varints.
+ */
+final class Footer {
+    static final int OFFSETS = 1;
+    static final int STATS = 2;
+    static final int RANGES = 3;
+    static final int BLOOM = 4;
+    static final int INDEX = 5;
+    static final int CODEC = 6;
+    static final int RESTARTS = 7;
+    static final int VERSION = 5;
+    static final int FLAGS_VERSION = 2;
+
+    // "PRLTABLE" with the sign bit set
+    private static final long MAGIC = 0x50524C5441424C45L | Long.MIN_VALUE;
+    private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES * 2;
+    private static final int TRAILER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+
+    private final Map<Integer, long[]> sections = new LinkedHashMap<>();
+    private int version = VERSION;
+    // Sections of a table read from disk, they start at the offset of the first one
+    @Nullable
+    private ByteBuffer mapped;
+    private long start;
+
+    void add(final int id, final long offset, final long length) {
+        sections.put(id, new long[]{offset, length});
+    }
+
+    @NotNull
+    ByteBuffer toBuffer() {
+        final ByteBuffer result = ByteBuffer.allocate(sections.size() * ENTRY_SIZE + TRAILER_SIZE);
+        for (final Map.Entry<Integer, long[]> section : sections.entrySet()) {
+            result.putInt(section.getKey());
+            result.putLong(section.getValue()[0]);
+            result.putLong(section.getValue()[1]);
+        }
+        result.putInt(sections.size());
+        result.putInt(VERSION);
+        result.putLong(MAGIC);
+        result.rewind();
+        return result;
+    }
+
+    /**
+     * Check whether the table has a footer or is in the legacy format.
+     *
+     * @param fc whole table
+     * @return true if the footer is present
+     * @throws IOException if the table can't be read
+     */
+    static boolean isPresent(@NotNull final FileChannel fc) throws IOException {
+        final long size = fc.size();
+        return size >= Long.BYTES && Bytes.read(fc, size - Long.BYTES, Long.BYTES).getLong(0) < 0;
+    }
+
+    /**
+     * Read the section directory of a table and map its sections, the cells before them aren't mapped.
+     *
+     * @param fc whole table
+     * @return directory of the table
+     * @throws IOException if the footer is corrupted or written by a newer version
+     */
+    @NotNull
+    static Footer read(@NotNull final FileChannel fc) throws IOException {
+        final long end = fc.size();
+        if (end < TRAILER_SIZE) {
+            throw new IOException("Bad table footer");
+        }
+        final ByteBuffer trailer = Bytes.read(fc, end - TRAILER_SIZE, TRAILER_SIZE);
+        if (trailer.getLong(Integer.BYTES * 2) != MAGIC) {
+            throw new IOException("Bad table footer");
+        }
+        final int version = trailer.getInt(Integer.BYTES);
+        if (version > VERSION) {
+            throw new IOException("Unsupported table version " + version);
+        }
+        final int count = trailer.getInt(0);
+        final long directory = end - TRAILER_SIZE - (long) count * ENTRY_SIZE;
+        if (count < 0 || directory < 0) {
+            throw new IOException("Bad table footer");
+        }
+
+        final Footer result = new Footer();
+        result.version = version;
+        final ByteBuffer entries = Bytes.read(fc, directory, count * ENTRY_SIZE);
+        long start = directory;
+        for (int i = 0; i < count; i++) {
+            final int entry = i * ENTRY_SIZE;
+            final long offset = entries.getLong(entry + Integer.BYTES);
+            final long length = entries.getLong(entry + Integer.BYTES + Long.BYTES);
+            if (offset < 0 || length < 0 || offset + length > directory) {
+                throw new IOException("Bad table section " + entries.getInt(entry));
+            }
+            result.add(entries.getInt(entry), offset, length);
+            start = Math.min(start, offset);
+        }
+        if (directory - start > Integer.MAX_VALUE) {
+            throw new IOException("Table sections are too large");
+        }
+        result.start = start;
+        result.mapped = fc.map(FileChannel.MapMode.READ_ONLY, start, directory - start);
+        return result;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the offset of a section.
+     *
+     * @param id of the section
+     * @return offset from the start of the table or -1 if there is no such section
+     */
+    long offset(final int id) {
+        final long[] section = sections.get(id);
+        return section == null ? -1L : section[0];
+    }
+
+    /**
+     * Get the contents of a section of a footer read from a table.
+     *
+     * @param id of the section
+     * @return contents or null if there is no such section
+     */
+    @Nullable
+    ByteBuffer slice(final int id) {
+        final long[] section = sections.get(id);
+        if (section == null) {
+            return null;
+        }
+        assert mapped != null;
+        final ByteBuffer result = mapped.duplicate();
+        result.position((int) (section[0] - start));
+        result.limit((int) (section[0] + section[1] - start));
+        return result.slice();
+    }
+}
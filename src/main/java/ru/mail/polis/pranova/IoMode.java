@@ -0,0 +1,22 @@
+package ru.mail.polis.pranova;
+
+/**
+ * How blocks of the tables are read.
+ */
+public enum IoMode {
+    /**
+     * Map the tables and read uncompressed blocks in place, the OS page cache holds them.
+     */
+    MMAP,
+    /**
+     * Read every block by a positional read of the file, the tables are not mapped.
+     * Use with a {@link BlockCache} to keep hot blocks in memory.
+     */
+    PREAD,
+    /**
+     * Read every block by a positional read bypassing the OS page cache by {@code O_DIRECT}, like
+     * {@link #PREAD} where the JDK or the file system doesn't support it. Use with a {@link BlockCache},
+     * it's the only memory holding the blocks.
+     */
+    DIRECT
+}
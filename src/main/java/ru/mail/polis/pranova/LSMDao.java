@@ -1,13 +1,21 @@
 package ru.mail.polis.pranova;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -16,21 +24,82 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Thread-safe LSM storage.
+ *
+ * <p>Readers take the current {@link TableSet} and never block. Writers share the read side of
+ * {@link #lock} while appending to the commit log and the memtable, the write side is taken only
+ * to freeze the memtable, so a frozen memtable is guaranteed to receive no more writes.
+ *
+ * <p>Frozen memtables are written to disk by a background flusher while a fresh memtable takes writes.
+ * After each flush a background compactor merges tables chosen by {@link Config#getCompactionStrategy()}.
+ * Both write at the pace of {@link Config#getRateLimiter()} if it's set.
+ */
 public final class LSMDao implements DAO {
     private static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
     private static final String PREFIX = "PRL";
-    private Table memTable = new MemTable();
+    private static final String LOG = ".log";
+    private static final String LEVEL = "-";
+    private static final String CHECKPOINT = ".cmp";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long MIN_SUBCOMPACTION_SIZE = 1024L * 1024;
+    private static final int SAMPLES_PER_RANGE = 16;
+    // Releases the tables of iterators abandoned before the end
+    private static final Cleaner CLEANER = Cleaner.create(Threads.daemon("iterator-cleaner"));
+
     private final File base;
-    private int generation;
     private final long flushThreshold;
-    private final Collection<FileTable> files;
+    private final int flushQueueDepth;
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(Threads.daemon("memtable-flusher"));
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(Threads.daemon("compaction"));
+    private final ForkJoinPool subcompactions;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final CompactionStrategy compactionStrategy;
+    @Nullable
+    private final RateLimiter rateLimiter;
+    @Nullable
+    private final CompactionFilter compactionFilter;
+    // Format of new tables
+    private final Config config;
+    @Nullable
+    private final RowCache rowCache;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactionLock = new Object();
+    private final CommitLog commitLog;
+    private volatile TableSet tables;
+    private volatile IOException flushError;
+    private volatile IOException compactionError;
+    private volatile boolean closed;
 
     /**
      * LSM storage.
@@ -41,113 +110,1094 @@ public final class LSMDao implements DAO {
      */
     public LSMDao(@NotNull final File base,
                   @NotNull final long flushThreshold) throws IOException {
+        this(base, flushThreshold, Config.DEFAULT);
+    }
+
+    /**
+     * LSM storage.
+     *
+     * @param base           is root directory
+     * @param flushThreshold is max size of storage
+     * @param config         tuning of the storage
+     * @throws IOException if an I/O error is thrown by a visitor method
+     */
+    public LSMDao(@NotNull final File base,
+                  @NotNull final long flushThreshold,
+                  @NotNull final Config config) throws IOException {
         this.base = base;
         assert flushThreshold >= 0L;
         this.flushThreshold = flushThreshold;
-        files = new ArrayList<>();
+        this.flushQueueDepth = config.getFlushQueueDepth();
+        this.compactionStrategy = config.getCompactionStrategy();
+        this.subcompactions = new ForkJoinPool(config.getSubcompactions());
+        this.rateLimiter = config.getRateLimiter();
+        this.compactionFilter = config.getCompactionFilter();
+        this.config = config;
+        this.rowCache = config.getRowCacheSize() == 0 ? null : new RowCache(config.getRowCacheSize());
+        final List<FileTable> found = new ArrayList<>();
+        final SortedMap<Integer, File> logs = new TreeMap<>();
+        final SortedMap<Integer, File> checkpoints = new TreeMap<>();
         final EnumSet<FileVisitOption> options = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
         final int maxDeep = 1;
         Files.walkFileTree(base.toPath(), options, maxDeep, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
-                if (path.getFileName().toString().endsWith(SUFFIX)
-                        && path.getFileName().toString().startsWith(PREFIX)) {
-                    files.add(new FileTable(path.toFile()));
+                final String name = path.getFileName().toString();
+                if (!name.startsWith(PREFIX)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (name.endsWith(SUFFIX)) {
+                    // PRL<generation>.dat or PRL<generation>-<level>.dat
+                    final String id = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+                    final int separator = id.indexOf(LEVEL);
+                    final int level = separator < 0 ? 0 : Math.max(number(id.substring(separator + 1)), 0);
+                    found.add(new FileTable(path.toFile(), level, config));
+                    generation.accumulateAndGet(number(separator < 0 ? id : id.substring(0, separator)), Math::max);
+                } else if (name.endsWith(LOG)) {
+                    final int logGeneration = generationOf(name, LOG);
+                    if (logGeneration > 0) {
+                        logs.put(logGeneration, path.toFile());
+                        generation.accumulateAndGet(logGeneration, Math::max);
+                    }
+                } else if (name.endsWith(CHECKPOINT)) {
+                    final int checkpointGeneration = generationOf(name, CHECKPOINT);
+                    if (checkpointGeneration > 0) {
+                        checkpoints.put(checkpointGeneration, path.toFile());
+                        generation.accumulateAndGet(checkpointGeneration, Math::max);
+                    }
+                } else if (name.endsWith(TEMP)) {
+                    // Leftover of an interrupted flush or compaction
+                    Files.delete(path);
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
-        generation = files.size() + 1;
+        generation.incrementAndGet();
+        final List<FileTable> files = restore(found, checkpoints.values());
+        final FileTable recovered = recover(logs.values());
+        if (recovered != null) {
+            files.add(recovered);
+        }
+        tables = new TableSet(new MemTable(), Collections.emptyList(), files);
+        commitLog = new CommitLog(logFile(generation.getAndIncrement()), config);
+        scheduleCompaction();
+    }
+
+    private static int generationOf(@NotNull final String name, @NotNull final String suffix) {
+        return number(name.substring(PREFIX.length(), name.length() - suffix.length()));
+    }
+
+    private static int number(@NotNull final String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File logFile(final int generation) {
+        return new File(base, PREFIX + generation + LOG);
+    }
+
+    private File checkpointFile(final int generation) {
+        return new File(base, PREFIX + generation + CHECKPOINT);
+    }
+
+    /**
+     * Narrow tables down to the rows not merged yet by interrupted compactions.
+     */
+    @NotNull
+    private static List<FileTable> restore(@NotNull final List<FileTable> files,
+                                           @NotNull final Collection<File> checkpoints) throws IOException {
+        final Map<File, Map<String, List<int[]>>> checkpointed = new HashMap<>();
+        final Map<String, List<int[]>> live = new HashMap<>();
+        for (final File checkpoint : checkpoints) {
+            final Map<String, List<int[]>> rows = Checkpoint.read(checkpoint);
+            checkpointed.put(checkpoint, rows);
+            for (final Map.Entry<String, List<int[]>> table : rows.entrySet()) {
+                live.merge(table.getKey(), table.getValue(), Checkpoint::intersect);
+            }
+        }
+
+        final List<FileTable> result = new ArrayList<>();
+        final Set<String> inUse = new HashSet<>();
+        for (final FileTable file : files) {
+            final String name = file.getFile().getName();
+            final List<int[]> rows = live.get(name);
+            if (rows == null) {
+                result.add(file);
+                continue;
+            }
+            for (final int[] range : rows) {
+                if (range[0] < file.firstRow() || range[1] > file.endRow() || range[0] >= range[1]) {
+                    throw new IOException("Bad checkpoint of " + file.getFile());
+                }
+                result.add(file.view(range[0], range[1]));
+                inUse.add(name);
+            }
+            // The file is deleted if nothing of it is left
+            file.deleteFileTable();
+        }
+
+        for (final Map.Entry<File, Map<String, List<int[]>>> checkpoint : checkpointed.entrySet()) {
+            if (Collections.disjoint(checkpoint.getValue().keySet(), inUse)) {
+                Files.delete(checkpoint.getKey().toPath());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replay commit logs left by a crash and persist them as a single table.
+     */
+    @Nullable
+    private FileTable recover(@NotNull final Collection<File> logs) throws IOException {
+        final MemTable memTable = new MemTable();
+        for (final File log : logs) {
+            CommitLog.replay(log, memTable::put, memTable::put);
+        }
+        // Nothing is served until recovery is done, so it's not throttled
+        final FileTable recovered = memTable.sizeInBytes() == 0 ? null : write(memTable, null);
+        for (final File log : logs) {
+            Files.delete(log.toPath());
+        }
+        return recovered;
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return getIterator(from, FileTable.Order.DIRECT);
+        return getIterator(from, null, FileTable.Order.DIRECT);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The tables read by the iterator are released as soon as it reaches the "to" key.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return getIterator(from, to, FileTable.Order.DIRECT);
     }
 
+    /**
+     * Merge the tables chosen by {@link CompactionStrategy#major(List)} of the configured strategy. The result
+     * is split into tables of the size limit of the strategy, e.g. the default size-tiered strategy writes
+     * a single run of tables of up to 64MB rather than one table, so the inputs are freed as the merge goes.
+     */
     @Override
     public void compact() throws IOException {
+        synchronized (compactionLock) {
+            compact(compactionStrategy.major(tables.files));
+        }
+    }
+
+    /**
+     * Merge the tables, caller must hold {@link #compactionLock}.
+     *
+     * <p>Large compactions are split into disjoint key ranges merged in parallel. Every output table is
+     * published as soon as it's written together with views of the rows of the inputs not merged yet,
+     * so an input is deleted as soon as all of its rows are merged. Inputs of a run of size-bounded tables are
+     * thus freed one by one and a merge takes about one output table of extra disk. A table spanning the whole
+     * key range, e.g. a flushed one, is freed only once the merge is done, and the JDK can't punch holes into
+     * the merged part, so merging flushed tables may take up to their total size of extra disk.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final List<FileTable> inputs = compaction.getInputs();
+        final boolean dropTombstones = canDropTombstones(inputs);
+        final RangeTombstones masks = tables.fileRangeTombstones();
+        final List<RangeTombstone> rangeTombstones = carriedRangeTombstones(inputs);
+        final List<ByteBuffer> splits = splitKeys(inputs);
+        final Progress progress = new Progress(inputs, splits);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final List<Future<?>> ranges = new ArrayList<>();
+        for (int i = 0; i <= splits.size(); i++) {
+            final int range = i;
+            final ByteBuffer from = i == 0 ? EMPTY : splits.get(i - 1);
+            final ByteBuffer to = i == splits.size() ? null : splits.get(i);
+            ranges.add(subcompactions.submit(() -> {
+                compact(compaction, progress, range, from, to, dropTombstones, masks, rangeTombstones, aborted);
+                return null;
+            }));
+        }
+
+        Throwable error = null;
+        for (final Future<?> range : ranges) {
+            try {
+                Uninterruptibles.getUninterruptibly(range);
+            } catch (ExecutionException e) {
+                // Stop the other ranges, the first real failure wins over cancellations it causes
+                aborted.set(true);
+                if (error == null || error instanceof CancellationException) {
+                    error = e.getCause();
+                }
+            }
+        }
+        if (error != null) {
+            // Published outputs and the views of the inputs stay, the checkpoint keeps them consistent
+            Throwables.throwIfInstanceOf(error, IOException.class);
+            Throwables.throwIfUnchecked(error);
+            throw new IOException("Compaction failed", error);
+        }
+        progress.finish();
+    }
+
+    /**
+     * Merge the key range [from, to) of the compaction inputs publishing each output table.
+     * Cells covered by range tombstones are dropped, range tombstones still needed go to the first output.
+     */
+    private void compact(@NotNull final Compaction compaction,
+                         @NotNull final Progress progress,
+                         final int range,
+                         @NotNull final ByteBuffer from,
+                         @Nullable final ByteBuffer to,
+                         final boolean dropTombstones,
+                         @NotNull final RangeTombstones masks,
+                         @NotNull final List<RangeTombstone> ranges,
+                         @NotNull final AtomicBoolean aborted) throws IOException {
         final List<Iterator<Cell>> filesIterators = new ArrayList<>();
+        for (final FileTable fileTable : compaction.getInputs()) {
+            filesIterators.add(fileTable.iterator(from));
+        }
+
+        final long now = System.currentTimeMillis();
+        final Iterator<Cell> merged = until(merge(filesIterators, Cell.COMPARATOR), to);
+        final Iterator<Cell> unmasked = Iterators.filter(merged, cell -> !masks.covers(cell));
+        final Iterator<Cell> filtered = Iterators.transform(unmasked, cell -> filter(cell, now));
+        final Iterator<Cell> cells = Iterators.filter(filtered, cell -> {
+            if (closed || aborted.get()) {
+                throw new CancellationException("Compaction is cancelled");
+            }
+            return !dropTombstones || !cell.getValue().isRemoved();
+        });
+        List<RangeTombstone> pending = new ArrayList<>();
+        for (final RangeTombstone rangeTombstone : ranges) {
+            final RangeTombstone clipped = rangeTombstone.clip(from, to);
+            if (clipped != null) {
+                pending.add(clipped);
+            }
+        }
+        while (cells.hasNext() || !pending.isEmpty()) {
+            progress.published(range,
+                    write(cells, pending, compaction.getLevel(), compaction.getMaxFileSize(), rateLimiter));
+            pending = Collections.emptyList();
+        }
+        progress.published(range, null);
+    }
+
+    /**
+     * Expire a live cell or apply {@link #compactionFilter} to it. A dropped cell turns into a tombstone
+     * of the same age to hide older values in other tables unless tombstones are dropped anyway.
+     */
+    @NotNull
+    private Cell filter(@NotNull final Cell cell, final long nowMillis) {
+        final Value value = cell.getValue();
+        if (value.isRemoved()) {
+            return cell;
+        }
+        if (value.isDead(nowMillis)) {
+            return tombstone(cell);
+        }
+        if (compactionFilter == null) {
+            return cell;
+        }
+        final ByteBuffer data = value.getData();
+        final ByteBuffer filtered = compactionFilter.filter(cell.getKey(), data);
+        if (filtered == null) {
+            return tombstone(cell);
+        }
+        return filtered == data
+                ? cell
+                : new Cell(cell.getKey(), new Value(value.getTimeStamp(), filtered, value.getExpiry()));
+    }
+
+    @NotNull
+    private static Cell tombstone(@NotNull final Cell cell) {
+        return new Cell(cell.getKey(), new Value(cell.getValue().getTimeStamp(), null));
+    }
+
+    /**
+     * Choose keys splitting the inputs into ranges of similar size, at most one range per subcompaction.
+     */
+    @NotNull
+    private List<ByteBuffer> splitKeys(@NotNull final List<FileTable> inputs) {
+        long size = 0;
+        for (final FileTable input : inputs) {
+            size += input.sizeInBytes();
+        }
+        final int ranges = (int) Math.min(subcompactions.getParallelism(), size / MIN_SUBCOMPACTION_SIZE);
+        if (ranges <= 1) {
+            return Collections.emptyList();
+        }
+
+        // Larger tables get proportionally more samples
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final FileTable input : inputs) {
+            samples.addAll(input.sampleKeys((int) (SAMPLES_PER_RANGE * ranges * input.sizeInBytes() / size)));
+        }
+        if (samples.isEmpty()) {
+            return Collections.emptyList();
+        }
+        samples.sort(Comparator.naturalOrder());
+        final List<ByteBuffer> result = new ArrayList<>();
+        for (int i = 1; i < ranges; i++) {
+            final ByteBuffer split = samples.get(samples.size() * i / ranges);
+            if (result.isEmpty() || split.compareTo(result.get(result.size() - 1)) > 0) {
+                result.add(split);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static Iterator<Cell> until(@NotNull final Iterator<Cell> cells, @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return cells;
+        }
+        final PeekingIterator<Cell> peeking = Iterators.peekingIterator(cells);
+        return new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                return peeking.hasNext() && peeking.peek().getKey().compareTo(to) < 0 ? peeking.next() : endOfData();
+            }
+        };
+    }
+
+    /**
+     * Rows of the compaction inputs merged so far, tracked separately for each key range.
+     */
+    private final class Progress {
+        private final List<FileTable> inputs;
+        // First row not merged yet and the end of each range of each input
+        private final int[][] next;
+        private final int[][] end;
+        // Current views of the rest of each input
+        private final List<List<FileTable>> views = new ArrayList<>();
+        private final int checkpointGeneration = generation.getAndIncrement();
 
-        for (final FileTable fileTable : files) {
-            filesIterators.add(fileTable.iterator(ByteBuffer.allocate(0)));
+        Progress(@NotNull final List<FileTable> inputs, @NotNull final List<ByteBuffer> splits) {
+            this.inputs = inputs;
+            this.next = new int[splits.size() + 1][inputs.size()];
+            this.end = new int[splits.size() + 1][inputs.size()];
+            for (int j = 0; j < inputs.size(); j++) {
+                final FileTable input = inputs.get(j);
+                for (int range = 0; range <= splits.size(); range++) {
+                    next[range][j] = range == 0 ? input.firstRow() : input.rowFrom(splits.get(range - 1));
+                    end[range][j] = range == splits.size() ? input.endRow() : input.rowFrom(splits.get(range));
+                }
+                views.add(Collections.singletonList(input));
+            }
         }
 
-        final Iterator<Cell> alive = getCellsIterator(filesIterators);
-        final File tmp = new File(base, PREFIX + 1 + TEMP);
-        FileTable.write(alive, tmp);
+        /**
+         * Replace the rows merged into the output with the output.
+         *
+         * @param range  key range the output belongs to
+         * @param output written table or null if the range is done, an output without rows ends the range too
+         */
+        synchronized void published(final int range, @Nullable final FileTable output) throws IOException {
+            final List<FileTable> retired = new ArrayList<>();
+            final List<FileTable> created = new ArrayList<>();
+            for (int j = 0; j < inputs.size(); j++) {
+                final FileTable input = inputs.get(j);
+                next[range][j] = output == null || output.rows() == 0
+                        ? end[range][j]
+                        : Math.max(next[range][j], Math.min(input.rowAfter(output.lastKey()), end[range][j]));
+                final List<FileTable> rest = new ArrayList<>();
+                for (int r = 0; r < next.length; r++) {
+                    if (next[r][j] < end[r][j]) {
+                        rest.add(input.view(next[r][j], end[r][j]));
+                    }
+                }
+                retired.addAll(views.get(j));
+                created.addAll(rest);
+                views.set(j, rest);
+            }
+            if (output != null) {
+                created.add(output);
+            }
 
-        for (final FileTable fileTable : files) {
-            fileTable.deleteFileTable();
+            final TableSet published;
+            synchronized (LSMDao.this) {
+                tables = tables.compacted(retired, created);
+                published = tables;
+            }
+            if (rowCache != null && compactionFilter != null) {
+                // Values rewritten or dropped by the filter are resolved anew
+                rowCache.clear();
+            }
+            // Merged rows must not be read after a crash before any input is gone
+            Checkpoint.write(live(published),
+                    new File(base, PREFIX + checkpointGeneration + TEMP),
+                    checkpointFile(checkpointGeneration));
+            for (final FileTable table : retired) {
+                table.deleteFileTable();
+            }
         }
 
-        files.clear();
-        final File dest = new File(base, PREFIX + 1 + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        files.add(new FileTable(dest));
-        generation = files.size() + 1;
+        /**
+         * Drop the checkpoint once every input is deleted.
+         */
+        synchronized void finish() throws IOException {
+            for (final List<int[]> rows : live(tables).values()) {
+                if (!rows.isEmpty()) {
+                    return;
+                }
+            }
+            Files.delete(checkpointFile(checkpointGeneration).toPath());
+        }
+
+        /**
+         * Collect the rows of the input files still in use.
+         */
+        @NotNull
+        private Map<String, List<int[]>> live(@NotNull final TableSet tableSet) {
+            final Map<String, List<int[]>> result = new HashMap<>();
+            for (final FileTable input : inputs) {
+                result.put(input.getFile().getName(), new ArrayList<>());
+            }
+            for (final FileTable file : tableSet.files) {
+                final List<int[]> rows = result.get(file.getFile().getName());
+                if (rows != null && file.rows() > 0) {
+                    rows.add(new int[]{file.firstRow(), file.endRow()});
+                }
+            }
+            for (final List<int[]> rows : result.values()) {
+                rows.sort(Comparator.comparingInt(range -> range[0]));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A tombstone may be dropped only if no other table holds an older value it hides.
+     * Memtables are newer than any table, so it is enough to check that other tables don't overlap.
+     */
+    private boolean canDropTombstones(@NotNull final List<FileTable> inputs) {
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final FileTable input : inputs) {
+            if (input.rows() == 0) {
+                continue;
+            }
+            final ByteBuffer first = input.firstKey();
+            final ByteBuffer last = input.lastKey();
+            from = from == null || first.compareTo(from) < 0 ? first : from;
+            to = to == null || last.compareTo(to) > 0 ? last : to;
+        }
+        if (from == null) {
+            return true;
+        }
+        for (final FileTable file : tables.files) {
+            if (!inputs.contains(file) && file.overlaps(from, to)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collect the range tombstones of the inputs which may still hide cells of other tables.
+     */
+    @NotNull
+    private List<RangeTombstone> carriedRangeTombstones(@NotNull final List<FileTable> inputs) {
+        final Set<RangeTombstone> ranges = new HashSet<>();
+        for (final FileTable input : inputs) {
+            ranges.addAll(input.rangeTombstones());
+        }
+        final List<RangeTombstone> result = new ArrayList<>();
+        for (final RangeTombstone range : ranges) {
+            for (final FileTable file : tables.files) {
+                if (!inputs.contains(file) && overlaps(file, range)) {
+                    result.add(range);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean overlaps(@NotNull final FileTable file, @NotNull final RangeTombstone range) {
+        final ByteBuffer to = range.getTo();
+        return file.rows() > 0
+                && (to == null || file.firstKey().compareTo(to) < 0)
+                && range.getFrom().compareTo(file.lastKey()) <= 0;
+    }
+
+    private void scheduleCompaction() {
+        if (compactionStrategy != CompactionStrategy.MANUAL && compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    private void compactInBackground() {
+        // Any flush from now on schedules another run
+        compactionScheduled.set(false);
+        try {
+            boolean behind = false;
+            while (!closed) {
+                synchronized (compactionLock) {
+                    final Compaction compaction = compactionStrategy.pick(tables.files);
+                    if (rateLimiter != null) {
+                        // Compactions back to back mean the storage is behind
+                        rateLimiter.backlog(compaction != null && behind);
+                    }
+                    if (compaction == null) {
+                        return;
+                    }
+                    compact(compaction);
+                    behind = true;
+                }
+            }
+        } catch (IOException e) {
+            // Published progress stays, the next flush retries
+            compactionError = e;
+        } catch (CancellationException e) {
+            // Closing
+        }
+    }
+
+    @NotNull
+    private static Iterator<Cell> merge(@NotNull final List<Iterator<Cell>> iterators,
+                                        @NotNull final Comparator<Cell> comparator) {
+        final Iterator<Cell> mergedCells = Iterators.mergeSorted(iterators, comparator);
+        return Iters.collapseEquals(mergedCells, Cell::getKey);
     }
 
-    private Iterator<Cell> getCellsIterator(@NotNull final List<Iterator<Cell>> iterators) {
-        final Iterator<Cell> mergedCells = Iterators.mergeSorted(iterators, Cell.COMPARATOR);
-        final Iterator<Cell> cells = Iters.collapseEquals(mergedCells, Cell::getKey);
-        return Iterators.filter(cells, cell -> !cell.getValue().isRemoved());
+    @NotNull
+    private static Iterator<Cell> getCellsIterator(@NotNull final List<Iterator<Cell>> iterators,
+                                                   @NotNull final Comparator<Cell> comparator,
+                                                   @NotNull final List<RangeTombstones> masks) {
+        final long now = System.currentTimeMillis();
+        return Iterators.filter(merge(iterators, comparator), cell -> {
+            if (cell.getValue().isDead(now)) {
+                return false;
+            }
+            for (final RangeTombstones mask : masks) {
+                if (mask.covers(cell)) {
+                    return false;
+                }
+            }
+            return true;
+        });
     }
 
+    /**
+     * Look the key up directly: the memtables first, then the tables by descending max timestamp until
+     * the rest of the tables are older than the value found. Tables are skipped by their Bloom filters
+     * and key ranges before being searched. The resolved value is cached if there is a row cache.
+     *
+     * <p>The key is hashed and compared in place, blocks read without mapping are searched in the buffer of
+     * the read. A lookup allocates a value for every table holding the key, copied out of the block unless
+     * the table is mapped, and the returned buffer.
+     */
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() > flushThreshold) {
-            flush();
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final RowCache cache = rowCache;
+        long stamp = 0;
+        if (cache != null) {
+            final Value cached = cache.get(key);
+            if (cached != null) {
+                if (cached.isDead(System.currentTimeMillis())) {
+                    throw new NoSuchElementException("Not found");
+                }
+                return cached.getData();
+            }
+            // Taken before the snapshot, so a write after the snapshot keeps the value out
+            stamp = cache.stamp(key);
+        }
+
+        final TableSet snapshot = acquire();
+        Value found;
+        long removed;
+        try {
+            found = snapshot.memTable.get(key);
+            removed = snapshot.memTable.rangeTombstoneAt(key);
+            for (final MemTable memTable : snapshot.flushing) {
+                found = newer(found, memTable.get(key));
+                removed = Math.max(removed, memTable.rangeTombstoneAt(key));
+            }
+            removed = Math.max(removed, snapshot.fileRangeTombstones().timestampAt(key));
+
+            for (final FileTable file : snapshot.newestFirst()) {
+                if (found != null && file.stats().getMaxTimestamp() < found.getTimeStamp()) {
+                    break;
+                }
+                // The filter goes first, so a table without the key is not touched at all
+                if (file.rows() > 0 && file.mightContain(key) && file.overlaps(key, key)) {
+                    found = newer(found, file.get(key));
+                }
+            }
+        } finally {
+            snapshot.release();
+        }
+
+        final boolean absent = found == null
+                || found.getTimeStamp() < removed
+                || found.isDead(System.currentTimeMillis());
+        if (cache != null) {
+            cache.put(key, absent ? null : found, stamp);
         }
+        if (absent) {
+            throw new NoSuchElementException("Not found");
+        }
+        return found.getData();
     }
 
-    private void flush() throws IOException {
-        final File tmp = new File(base, PREFIX + generation + TEMP);
-        FileTable.write(memTable.iterator(ByteBuffer.allocate(0)), tmp);
-        final File dest = new File(base, PREFIX + generation + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        files.add(new FileTable(dest));
-        generation++;
-        memTable = new MemTable();
+    /**
+     * Look the keys up sorted, so every table is walked once in key order. Tables are probed like in
+     * {@link #get(ByteBuffer)} until all the values found are newer than the rest of the tables.
+     */
+    @NotNull
+    @Override
+    public List<ByteBuffer> multiGet(@NotNull final Collection<ByteBuffer> keys) throws IOException {
+        final ByteBuffer[] requested = keys.toArray(new ByteBuffer[0]);
+        final Integer[] order = new Integer[requested.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> requested[i]));
+        final ByteBuffer[] sorted = new ByteBuffer[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = requested[order[i]];
+        }
+
+        final Value[] found = new Value[sorted.length];
+        final long[] removed = new long[sorted.length];
+        final TableSet snapshot = acquire();
+        try {
+            for (int i = 0; i < sorted.length; i++) {
+                found[i] = snapshot.memTable.get(sorted[i]);
+                removed[i] = Math.max(snapshot.memTable.rangeTombstoneAt(sorted[i]),
+                        snapshot.fileRangeTombstones().timestampAt(sorted[i]));
+                for (final MemTable memTable : snapshot.flushing) {
+                    found[i] = newer(found[i], memTable.get(sorted[i]));
+                    removed[i] = Math.max(removed[i], memTable.rangeTombstoneAt(sorted[i]));
+                }
+            }
+
+            for (final FileTable file : snapshot.newestFirst()) {
+                if (olderThanAll(file.stats().getMaxTimestamp(), found)) {
+                    break;
+                }
+                if (file.rows() > 0) {
+                    file.get(sorted, found);
+                }
+            }
+        } finally {
+            snapshot.release();
+        }
+
+        final long now = System.currentTimeMillis();
+        final ByteBuffer[] result = new ByteBuffer[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            final Value value = found[i];
+            if (value != null && value.getTimeStamp() >= removed[i] && !value.isDead(now)) {
+                result[order[i]] = value.getData();
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Get the current tables and keep the files readable until the set is released, a file compacted away
+     * meanwhile is closed after that.
+     *
+     * @throws IOException if the storage is closed
+     */
+    @NotNull
+    private TableSet acquire() throws IOException {
+        while (true) {
+            final TableSet snapshot = tables;
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+            if (closed) {
+                // The tables of the last set are released by close()
+                throw new IOException("Storage is closed");
+            }
+            // A table is closed only after it's replaced, so the next set is published shortly
+            Thread.onSpinWait();
+        }
+    }
+
+    private static boolean olderThanAll(final long timestamp, @NotNull final Value[] found) {
+        for (final Value value : found) {
+            if (value == null || value.getTimeStamp() <= timestamp) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static Value newer(@Nullable final Value current, @Nullable final Value candidate) {
+        return current == null || candidate != null && candidate.getTimeStamp() > current.getTimeStamp()
+                ? candidate
+                : current;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        apply(key, Value.of(value));
+    }
+
+    /**
+     * Inserts or updates value by given key, the value disappears once the time to live is over.
+     *
+     * @param key   to write
+     * @param value of the key
+     * @param ttl   time to live, whole milliseconds but at least one
+     * @throws IOException if the write can't be logged
+     */
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final Duration ttl) throws IOException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        }
+        apply(key, Value.of(value, Math.max(ttl.toMillis(), 1L)));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
+        apply(key, Value.tombstone());
+    }
+
+    /**
+     * Remove the keys of the range writing a single range tombstone whatever the number of keys.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) >= 0) {
+            return;
+        }
+        final RangeTombstone range = new RangeTombstone(
+                from.duplicate(), to == null ? null : to.duplicate(), Time.currentTime());
+        final long position;
+        final MemTable memTable;
+        lock.readLock().lock();
+        try {
+            position = commitLog.append(range);
+            memTable = tables.memTable;
+            memTable.put(range);
+            if (rowCache != null) {
+                rowCache.clear();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        afterApply(position, memTable);
+    }
+
+    private void apply(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        final long position;
+        final MemTable memTable;
+        lock.readLock().lock();
+        try {
+            position = commitLog.append(key, value);
+            memTable = tables.memTable;
+            memTable.put(key, value);
+            if (rowCache != null) {
+                rowCache.invalidate(key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        afterApply(position, memTable);
+    }
+
+    private void afterApply(final long position, @NotNull final MemTable memTable) throws IOException {
+        commitLog.sync(position);
         if (memTable.sizeInBytes() > flushThreshold) {
-            flush();
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Freeze the memtable and hand it over to the flusher unless somebody else has already done so.
+     * Stalls while {@link Config#getFlushQueueDepth()} memtables are waiting for the flusher.
+     */
+    private void scheduleFlush(@NotNull final MemTable memTable) throws IOException {
+        while (true) {
+            synchronized (this) {
+                while (tables.flushing.size() >= flushQueueDepth && flushError == null) {
+                    if (rateLimiter != null) {
+                        rateLimiter.backlog(true);
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for flush");
+                    }
+                }
+            }
+            checkFlushError();
+
+            lock.writeLock().lock();
+            try {
+                if (tables.memTable != memTable) {
+                    return;
+                }
+                if (tables.flushing.size() < flushQueueDepth) {
+                    synchronized (this) {
+                        tables = tables.startFlushing();
+                    }
+                    final File log = commitLog.roll(logFile(generation.getAndIncrement()));
+                    flusher.execute(() -> flush(memTable, log));
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void flush(@NotNull final MemTable memTable, @NotNull final File log) {
+        try {
+            final FileTable file = write(memTable, rateLimiter);
+            synchronized (this) {
+                tables = tables.flushed(memTable, file);
+                notifyAll();
+            }
+            Files.delete(log.toPath());
+            scheduleCompaction();
+        } catch (IOException e) {
+            // The memtable stays readable and its log stays on disk for recovery
+            synchronized (this) {
+                flushError = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkFlushError() throws IOException {
+        final IOException error = flushError;
+        if (error != null) {
+            throw new IOException("Background flush failed", error);
+        }
+    }
+
+    /**
+     * Write a frozen memtable, the cells removed by its own range tombstones are left out.
+     */
+    @NotNull
+    private FileTable write(@NotNull final MemTable memTable, @Nullable final RateLimiter limiter) throws IOException {
+        final List<RangeTombstone> ranges = memTable.rangeTombstones();
+        final RangeTombstones masks = RangeTombstones.of(ranges);
+        final Iterator<Cell> cells = Iterators.filter(memTable.iterator(EMPTY), cell -> !masks.covers(cell));
+        return write(cells, ranges, 0, Long.MAX_VALUE, limiter);
+    }
+
+    @NotNull
+    private FileTable write(@NotNull final Iterator<Cell> cells,
+                            @NotNull final List<RangeTombstone> ranges,
+                            final int level,
+                            final long maxFileSize,
+                            @Nullable final RateLimiter limiter) throws IOException {
+        final int tableGeneration = generation.getAndIncrement();
+        final File tmp = new File(base, PREFIX + tableGeneration + TEMP);
+        try {
+            FileTable.write(cells, ranges, tmp, maxFileSize, limiter, config);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
         }
+        final String levelSuffix = level == 0 ? "" : LEVEL + level;
+        final File dest = new File(base, PREFIX + tableGeneration + levelSuffix + SUFFIX);
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new FileTable(dest, level, config);
+    }
+
+    /**
+     * Get the cache of resolved values.
+     *
+     * @return cache or null if {@link Config#getRowCacheSize()} is 0
+     */
+    @Nullable
+    public RowCache getRowCache() {
+        return rowCache;
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.sizeInBytes() != 0) {
-            flush();
+        try {
+            try {
+                final MemTable memTable = tables.memTable;
+                if (memTable.sizeInBytes() != 0) {
+                    scheduleFlush(memTable);
+                }
+            } finally {
+                shutdown(flusher);
+                closed = true;
+                shutdown(compactor);
+                shutdown(subcompactions);
+            }
+            // Views of a file share its channel
+            final Set<File> files = new HashSet<>();
+            for (final FileTable file : tables.files) {
+                if (files.add(file.getFile())) {
+                    file.close();
+                }
+            }
+        } finally {
+            commitLog.close();
+        }
+        // The logs of the memtables not flushed stay on disk to be replayed on open
+        checkFlushError();
+        Files.delete(commitLog.getFile().toPath());
+
+        final IOException error = compactionError;
+        if (error != null) {
+            throw new IOException("Background compaction failed", error);
+        }
+    }
+
+    private static void shutdown(@NotNull final ExecutorService executor) throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting for running tasks
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background tasks");
         }
     }
 
     @Override
     public Iterator<Record> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
-        return getIterator(from, FileTable.Order.REVERSE);
+        return getIterator(from, null, FileTable.Order.REVERSE);
     }
 
     private Iterator<Record> getIterator(@NotNull final ByteBuffer from,
+                                         @Nullable final ByteBuffer to,
                                          @NotNull final FileTable.Order order)
             throws IOException {
-        final List<Iterator<Cell>> filesIterators = new ArrayList<>();
+        final TableSet snapshot = acquire();
+        final Iterator<Cell> alive;
+        try {
+            final List<Iterator<Cell>> iterators = new ArrayList<>();
+            iterators.add(cells(snapshot.memTable, from, order));
+            for (final MemTable memTable : snapshot.flushing) {
+                iterators.add(cells(memTable, from, order));
+            }
+
+            // Tables of levels 1 and deeper usually have disjoint key ranges, then each level is read as one sorted run
+            final SortedMap<Integer, List<FileTable>> runs = new TreeMap<>();
+            for (final FileTable file : snapshot.files) {
+                if (file.rows() == 0
+                        || order == FileTable.Order.DIRECT && file.lastKey().compareTo(from) < 0
+                        || to != null && file.firstKey().compareTo(to) >= 0
+                        || order == FileTable.Order.REVERSE && file.firstKey().compareTo(from) > 0) {
+                    continue;
+                }
+                if (file.getLevel() == 0) {
+                    iterators.add(cells(file, from, order));
+                } else {
+                    runs.computeIfAbsent(file.getLevel(), level -> new ArrayList<>()).add(file);
+                }
+            }
+            final Comparator<FileTable> byKey = Comparator.comparing(FileTable::firstKey);
+            for (final List<FileTable> run : runs.values()) {
+                run.sort(byKey);
+                if (!disjoint(run)) {
+                    // A strategy put overlapping tables on the level, they are merged like level 0
+                    for (final FileTable file : run) {
+                        iterators.add(cells(file, from, order));
+                    }
+                    continue;
+                }
+                if (order == FileTable.Order.REVERSE) {
+                    Collections.reverse(run);
+                }
+                iterators.add(Iterators.concat(Iterators.transform(run.iterator(), file -> {
+                    try {
+                        return cells(file, from, order);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })));
+            }
 
-        for (final FileTable fileTable : files) {
-            filesIterators.add(order == FileTable.Order.DIRECT
-                    ? fileTable.iterator(from)
-                    : fileTable.decreasingIterator(from));
+            alive = until(getCellsIterator(iterators,
+                    order == FileTable.Order.DIRECT ? Cell.COMPARATOR : Cell.REVERSE_COMPARATOR, masks(snapshot)), to);
+        } catch (IOException | RuntimeException e) {
+            snapshot.release();
+            throw e;
         }
+        return Iterators.transform(new Released(alive, snapshot),
+                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    }
 
-        filesIterators.add(order == FileTable.Order.DIRECT
-                ? memTable.iterator(from)
-                : memTable.decreasingIterator(from));
-        final Iterator<Cell> alive = getCellsIterator(filesIterators);
-        return Iterators.transform(alive, cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    /**
+     * Cells of tables released once the cells are read. The tables of an iterator abandoned on the way are
+     * released by {@link #CLEANER} when the iterator is collected.
+     */
+    private static final class Released extends AbstractIterator<Cell> {
+        private final Iterator<Cell> cells;
+        private final Cleaner.Cleanable release;
+
+        Released(@NotNull final Iterator<Cell> cells, @NotNull final TableSet snapshot) {
+            this.cells = cells;
+            // The action must not reach the iterator, otherwise it's never collected
+            this.release = CLEANER.register(this, () -> {
+                try {
+                    snapshot.release();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        @Override
+        protected Cell computeNext() {
+            if (cells.hasNext()) {
+                return cells.next();
+            }
+            // Runs at most once, whether drained or collected
+            release.clean();
+            return endOfData();
+        }
+    }
+
+    /**
+     * Check whether the tables sorted by the first key don't overlap.
+     */
+    private static boolean disjoint(@NotNull final List<FileTable> run) {
+        for (int i = 1; i < run.size(); i++) {
+            if (run.get(i - 1).lastKey().compareTo(run.get(i).firstKey()) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collect the range tombstones of the snapshot.
+     */
+    @NotNull
+    private static List<RangeTombstones> masks(@NotNull final TableSet snapshot) {
+        final List<RangeTombstones> masks = new ArrayList<>();
+        masks.add(RangeTombstones.of(snapshot.memTable.rangeTombstones()));
+        for (final MemTable memTable : snapshot.flushing) {
+            masks.add(RangeTombstones.of(memTable.rangeTombstones()));
+        }
+        masks.add(snapshot.fileRangeTombstones());
+        masks.removeIf(RangeTombstones::isEmpty);
+        return masks;
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(@NotNull final Table table,
+                                        @NotNull final ByteBuffer from,
+                                        @NotNull final FileTable.Order order) throws IOException {
+        return order == FileTable.Order.DIRECT ? table.iterator(from) : table.decreasingIterator(from);
     }
 }
@@ -0,0 +1,162 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Leveled layout: level 0 holds flushed memtables, every other level holds size-bounded tables
+ * with disjoint key ranges and is {@code multiplier} times larger than the previous one.
+ *
+ * <p>Once level 0 has enough tables they are merged into level 1. Once a level grows over its budget
+ * one of its tables is merged with the overlapping tables of the next level, tables of a level are
+ * picked round-robin by key so the whole level gets pushed down evenly.
+ */
+public final class LeveledCompaction implements CompactionStrategy {
+    private final int level0Trigger;
+    private final long baseLevelSize;
+    private final int multiplier;
+    private final long tableSize;
+    // Last key pushed down from each level, accessed under the compaction lock only
+    private final Map<Integer, ByteBuffer> cursors = new HashMap<>();
+
+    /**
+     * Leveled strategy.
+     *
+     * @param level0Trigger number of level 0 tables to merge them into level 1
+     * @param baseLevelSize max size of level 1
+     * @param multiplier    size ratio of adjacent levels
+     * @param tableSize     approximate size of tables on levels 1 and deeper
+     */
+    public LeveledCompaction(final int level0Trigger,
+                             final long baseLevelSize,
+                             final int multiplier,
+                             final long tableSize) {
+        if (level0Trigger < 1 || multiplier < 2 || tableSize <= 0 || baseLevelSize < tableSize) {
+            throw new IllegalArgumentException("Bad leveled compaction settings");
+        }
+        this.level0Trigger = level0Trigger;
+        this.baseLevelSize = baseLevelSize;
+        this.multiplier = multiplier;
+        this.tableSize = tableSize;
+    }
+
+    /**
+     * Leveled strategy with 4 tables trigger for level 0 and 10x larger levels.
+     *
+     * @param tableSize approximate size of tables on levels 1 and deeper
+     */
+    public LeveledCompaction(final long tableSize) {
+        this(4, tableSize * 10, 10, tableSize);
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        final List<List<FileTable>> levels = levels(files);
+
+        if (levels.get(0).size() >= level0Trigger) {
+            final List<FileTable> inputs = new ArrayList<>(levels.get(0));
+            addOverlapping(inputs, levels.size() > 1 ? levels.get(1) : List.of());
+            return new Compaction(inputs, 1, tableSize);
+        }
+
+        // The level which exceeds its budget the most
+        int worst = -1;
+        double worstScore = 1.0;
+        long budget = baseLevelSize;
+        for (int level = 1; level < levels.size(); level++) {
+            long size = 0;
+            for (final FileTable file : levels.get(level)) {
+                size += file.sizeInBytes();
+            }
+            final double score = (double) size / budget;
+            if (score > worstScore) {
+                worst = level;
+                worstScore = score;
+            }
+            budget *= multiplier;
+        }
+        if (worst < 0) {
+            return null;
+        }
+
+        final FileTable next = nextToPushDown(worst, levels.get(worst));
+        cursors.put(worst, next.lastKey());
+        final List<FileTable> inputs = new ArrayList<>();
+        inputs.add(next);
+        addOverlapping(inputs, worst + 1 < levels.size() ? levels.get(worst + 1) : List.of());
+        return new Compaction(inputs, worst + 1, tableSize);
+    }
+
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<FileTable> files) {
+        int deepest = 1;
+        for (final FileTable file : files) {
+            deepest = Math.max(deepest, file.getLevel());
+        }
+        return new Compaction(files, deepest, tableSize);
+    }
+
+    @NotNull
+    private static List<List<FileTable>> levels(@NotNull final List<FileTable> files) {
+        final List<List<FileTable>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>());
+        for (final FileTable file : files) {
+            // Empty tables are swept away together with level 0
+            final int level = file.rows() == 0 ? 0 : file.getLevel();
+            while (levels.size() <= level) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(level).add(file);
+        }
+        for (final List<FileTable> level : levels.subList(1, levels.size())) {
+            level.sort(Comparator.comparing(FileTable::firstKey));
+        }
+        return levels;
+    }
+
+    @NotNull
+    private FileTable nextToPushDown(final int level, @NotNull final List<FileTable> tables) {
+        final ByteBuffer cursor = cursors.get(level);
+        if (cursor != null) {
+            for (final FileTable table : tables) {
+                if (table.firstKey().compareTo(cursor) > 0) {
+                    return table;
+                }
+            }
+        }
+        // Wrap around
+        return tables.get(0);
+    }
+
+    /**
+     * Add tables of the next level overlapping the key range of the inputs.
+     */
+    private static void addOverlapping(@NotNull final List<FileTable> inputs, @NotNull final List<FileTable> next) {
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final FileTable input : inputs) {
+            if (input.rows() == 0) {
+                continue;
+            }
+            from = from == null || input.firstKey().compareTo(from) < 0 ? input.firstKey() : from;
+            to = to == null || input.lastKey().compareTo(to) > 0 ? input.lastKey() : to;
+        }
+        if (from == null) {
+            return;
+        }
+        for (final FileTable table : next) {
+            if (table.overlaps(from, to)) {
+                inputs.add(table);
+            }
+        }
+    }
+}
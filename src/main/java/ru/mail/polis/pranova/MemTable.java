@@ -2,20 +2,31 @@ package ru.mail.polis.pranova;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MemTable implements Table {
-    private final NavigableMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long sizeInBytes;
+    // Rough heap footprint of a skip list node, key and value buffers and a Value
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final NavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    // Kept aside, the cells they cover are masked on read and dropped on flush
+    private final Queue<RangeTombstone> ranges = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
 
     @Override
     public long sizeInBytes() {
-        return sizeInBytes;
+        return sizeInBytes.get();
     }
 
     @NotNull
@@ -28,26 +39,91 @@ public class MemTable implements Table {
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        final Value previous = map.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes += key.remaining() + value.remaining();
-        } else if (previous.isRemoved()) {
-            sizeInBytes += value.remaining();
-        } else {
-            sizeInBytes += value.remaining() - previous.getData().remaining();
-        }
+        put(key, Value.of(value));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        final Value previous = map.put(key, Value.tombstone());
+        put(key, Value.tombstone());
+    }
+
+    /**
+     * Get the value of the key.
+     *
+     * @param key to look for
+     * @return value, tombstone or null if there is no such key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        return map.get(key);
+    }
+
+    /**
+     * Get the timestamp of the newest range tombstone covering the key.
+     *
+     * @param key to look for
+     * @return timestamp or 0 if the key is not covered
+     */
+    long rangeTombstoneAt(@NotNull final ByteBuffer key) {
+        long result = 0L;
+        if (!ranges.isEmpty()) {
+            for (final RangeTombstone range : ranges) {
+                if (range.contains(key)) {
+                    result = Math.max(result, range.getTimeStamp());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Store already timestamped value or tombstone.
+     *
+     * @param key   of the cell
+     * @param value new value or tombstone
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        Value previous;
+        do {
+            previous = map.get(key);
+            if (previous != null && previous.getTimeStamp() > value.getTimeStamp()) {
+                // Lost the race to a newer write
+                return;
+            }
+        } while (previous == null
+                ? map.putIfAbsent(key, value) != null
+                : !map.replace(key, previous, value));
+
+        final long valueSize = value.isRemoved() ? 0 : value.getData().remaining();
         if (previous == null) {
-            sizeInBytes += key.remaining();
-        } else if (!previous.isRemoved()) {
-            sizeInBytes -= previous.getData().remaining();
+            sizeInBytes.addAndGet(ENTRY_OVERHEAD + key.remaining() + valueSize);
+        } else if (previous.isRemoved()) {
+            sizeInBytes.addAndGet(valueSize);
+        } else {
+            sizeInBytes.addAndGet(valueSize - previous.getData().remaining());
         }
     }
 
+    /**
+     * Store already timestamped range tombstone.
+     *
+     * @param range removed key range
+     */
+    void put(@NotNull final RangeTombstone range) {
+        ranges.add(range);
+        sizeInBytes.addAndGet(ENTRY_OVERHEAD + range.sizeInBytes());
+    }
+
+    /**
+     * Get the range tombstones stored so far.
+     *
+     * @return copy of the range tombstones
+     */
+    @NotNull
+    List<RangeTombstone> rangeTombstones() {
+        return ranges.isEmpty() ? List.of() : new ArrayList<>(ranges);
+    }
+
     @Override
     public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
         return Iterators.transform(
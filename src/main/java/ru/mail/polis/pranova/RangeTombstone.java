@@ -0,0 +1,133 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Removal of all the keys from {@code from} (inclusive) to {@code to} (exclusive) written before the timestamp.
+ */
+public final class RangeTombstone {
+    @NotNull
+    private final ByteBuffer from;
+    // Null means up to the end of the key space
+    @Nullable
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    RangeTombstone(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final long timestamp) {
+        assert to == null || from.compareTo(to) < 0;
+        assert timestamp >= 0;
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    public ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    public ByteBuffer getTo() {
+        return to == null ? null : to.asReadOnlyBuffer();
+    }
+
+    public long getTimeStamp() {
+        return timestamp;
+    }
+
+    /**
+     * Check whether the key is in the range.
+     *
+     * @param key to check
+     * @return true if the key is in [from, to)
+     */
+    boolean contains(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && (to == null || key.compareTo(to) < 0);
+    }
+
+    /**
+     * Cut the range down to the given bounds.
+     *
+     * @param lower first key of the bounds (inclusive)
+     * @param upper last key of the bounds (exclusive) or null if unbounded
+     * @return range tombstone within the bounds or null if it doesn't intersect them
+     */
+    @Nullable
+    RangeTombstone clip(@NotNull final ByteBuffer lower, @Nullable final ByteBuffer upper) {
+        final ByteBuffer newFrom = from.compareTo(lower) < 0 ? lower : from;
+        final ByteBuffer newTo = upper == null || to != null && to.compareTo(upper) < 0 ? to : upper;
+        if (newTo != null && newFrom.compareTo(newTo) >= 0) {
+            return null;
+        }
+        return newFrom == from && newTo == to ? this : new RangeTombstone(newFrom, newTo, timestamp);
+    }
+
+    /**
+     * Get the serialized size, see {@link #writeTo(ByteBuffer)}.
+     *
+     * @return size in bytes
+     */
+    int sizeInBytes() {
+        return Long.BYTES + Integer.BYTES * 2 + from.remaining() + (to == null ? 0 : to.remaining());
+    }
+
+    /**
+     * Put {@code [timestamp][from size][from][to size or -1][to]} to the buffer.
+     *
+     * @param buffer with at least {@link #sizeInBytes()} bytes remaining
+     */
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.putLong(timestamp);
+        buffer.putInt(from.remaining());
+        buffer.put(from.duplicate());
+        if (to == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(to.remaining());
+            buffer.put(to.duplicate());
+        }
+    }
+
+    /**
+     * Read a range tombstone written by {@link #writeTo(ByteBuffer)}, the keys share memory with the buffer.
+     *
+     * @param buffer positioned at the range tombstone, positioned after it on return
+     * @return range tombstone
+     */
+    @NotNull
+    static RangeTombstone readFrom(@NotNull final ByteBuffer buffer) {
+        final long timestamp = buffer.getLong();
+        final ByteBuffer from = key(buffer, buffer.getInt());
+        final int toSize = buffer.getInt();
+        return new RangeTombstone(from, toSize < 0 ? null : key(buffer, toSize), timestamp);
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final ByteBuffer buffer, final int size) {
+        final ByteBuffer key = buffer.slice();
+        key.limit(size);
+        buffer.position(buffer.position() + size);
+        return key;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RangeTombstone)) {
+            return false;
+        }
+        final RangeTombstone other = (RangeTombstone) o;
+        return timestamp == other.timestamp && from.equals(other.from) && Objects.equals(to, other.to);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to, timestamp);
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Range tombstones cut into disjoint fragments, each knowing the newest tombstone covering it,
+ * so whether a cell is removed is found by a binary search whatever the number of overlapping ranges.
+ */
+final class RangeTombstones {
+    static final RangeTombstones EMPTY = new RangeTombstones(new ByteBuffer[0], new long[0]);
+
+    // Fragment i spans [starts[i], starts[i + 1]) and removes cells older than timestamps[i], 0 if none
+    private final ByteBuffer[] starts;
+    private final long[] timestamps;
+
+    private RangeTombstones(@NotNull final ByteBuffer[] starts, @NotNull final long[] timestamps) {
+        this.starts = starts;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Fragment range tombstones.
+     *
+     * @param ranges to fragment, may overlap
+     * @return fragmented range tombstones
+     */
+    @NotNull
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> ranges) {
+        if (ranges.isEmpty()) {
+            return EMPTY;
+        }
+        final NavigableMap<ByteBuffer, List<RangeTombstone>> starting = new TreeMap<>();
+        final NavigableMap<ByteBuffer, List<RangeTombstone>> ending = new TreeMap<>();
+        for (final RangeTombstone range : ranges) {
+            starting.computeIfAbsent(range.getFrom(), key -> new ArrayList<>()).add(range);
+            final ByteBuffer to = range.getTo();
+            if (to != null) {
+                ending.computeIfAbsent(to, key -> new ArrayList<>()).add(range);
+            }
+        }
+        final TreeSet<ByteBuffer> bounds = new TreeSet<>(starting.keySet());
+        bounds.addAll(ending.keySet());
+
+        // Timestamps of the ranges covering the current fragment with their multiplicity
+        final NavigableMap<Long, Integer> active = new TreeMap<>();
+        final List<ByteBuffer> starts = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        for (final ByteBuffer bound : bounds) {
+            for (final RangeTombstone range : ending.getOrDefault(bound, List.of())) {
+                active.computeIfPresent(range.getTimeStamp(), (timestamp, count) -> count == 1 ? null : count - 1);
+            }
+            for (final RangeTombstone range : starting.getOrDefault(bound, List.of())) {
+                active.merge(range.getTimeStamp(), 1, Integer::sum);
+            }
+            final long timestamp = active.isEmpty() ? 0L : active.lastKey();
+            if (timestamps.isEmpty() || timestamps.get(timestamps.size() - 1) != timestamp) {
+                starts.add(bound);
+                timestamps.add(timestamp);
+            }
+        }
+        return new RangeTombstones(
+                starts.toArray(new ByteBuffer[0]),
+                timestamps.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    /**
+     * Get the timestamp of the newest range tombstone covering the key.
+     *
+     * @param key to look for
+     * @return timestamp or 0 if the key is not covered
+     */
+    long timestampAt(@NotNull final ByteBuffer key) {
+        final int found = Arrays.binarySearch(starts, key);
+        final int fragment = found >= 0 ? found : -found - 2;
+        return fragment < 0 ? 0L : timestamps[fragment];
+    }
+
+    /**
+     * Check whether the cell is removed by a newer range tombstone.
+     *
+     * @param cell to check
+     * @return true if the cell is hidden
+     */
+    boolean covers(@NotNull final Cell cell) {
+        return starts.length != 0 && cell.getValue().getTimeStamp() < timestampAt(cell.getKey());
+    }
+}
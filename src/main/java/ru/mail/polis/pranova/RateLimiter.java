@@ -0,0 +1,136 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket limiting the write rate of flushes and compactions, so they don't starve foreground reads.
+ *
+ * <p>The rate doubles for every background task started while the storage is behind, i.e. writers stall
+ * on the flush queue or compactions run back to back, up to the max rate. It drops back to the base rate
+ * once the storage catches up. One limiter may be shared by several storages.
+ */
+public final class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // Tokens saved up while idle are capped by this share of a second
+    private static final long BURST_DIVISOR = 10;
+
+    private final long baseRate;
+    private final long maxRate;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    // Guarded by this
+    private long rate;
+    private double available;
+    private long refilled = System.nanoTime();
+
+    /**
+     * Adaptive rate limiter.
+     *
+     * @param bytesPerSecond    rate while the storage keeps up
+     * @param maxBytesPerSecond rate limit while the storage is behind
+     */
+    public RateLimiter(final long bytesPerSecond, final long maxBytesPerSecond) {
+        if (bytesPerSecond <= 0 || maxBytesPerSecond < bytesPerSecond) {
+            throw new IllegalArgumentException("Bad rates: " + bytesPerSecond + ".." + maxBytesPerSecond);
+        }
+        this.baseRate = bytesPerSecond;
+        this.maxRate = maxBytesPerSecond;
+        this.rate = bytesPerSecond;
+    }
+
+    /**
+     * Rate limiter speeding up to 16 times while the storage is behind.
+     *
+     * @param bytesPerSecond rate while the storage keeps up
+     */
+    public RateLimiter(final long bytesPerSecond) {
+        this(bytesPerSecond, bytesPerSecond * 16);
+    }
+
+    /**
+     * Take tokens for the bytes about to be written, waiting until the bucket has them.
+     *
+     * @param count number of bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquire(final long count) throws InterruptedIOException {
+        bytes.add(count);
+        final long wait;
+        synchronized (this) {
+            refill();
+            // Go into debt, so large requests are not starved by small ones
+            available -= count;
+            wait = available < 0 ? (long) (-available * NANOS_PER_SECOND / rate) : 0L;
+        }
+        if (wait == 0L) {
+            return;
+        }
+        throttles.increment();
+        throttledNanos.add(wait);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * Adjust the rate to the backlog of background work.
+     *
+     * @param behind whether the storage falls behind the foreground writes
+     */
+    synchronized void backlog(final boolean behind) {
+        refill();
+        rate = behind ? Math.min(rate * 2, maxRate) : baseRate;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        available = Math.min(available + (double) (now - refilled) * rate / NANOS_PER_SECOND,
+                (double) rate / BURST_DIVISOR);
+        refilled = now;
+    }
+
+    /**
+     * Get the current rate.
+     *
+     * @return bytes per second
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Get the number of bytes passed through the limiter.
+     *
+     * @return bytes written by background tasks
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get the number of times a writer had to wait.
+     *
+     * @return number of waits
+     */
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    /**
+     * Get the total time writers waited.
+     *
+     * @param unit of the result
+     * @return time spent throttled
+     */
+    public long getThrottledTime(@NotNull final TimeUnit unit) {
+        return unit.convert(throttledNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+}
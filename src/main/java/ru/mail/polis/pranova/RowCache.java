@@ -0,0 +1,260 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the values resolved by {@link LSMDao#get(ByteBuffer)}, absent keys are cached too.
+ *
+ * <p>A key is admitted by TinyLFU: the shard counts how often keys are read in a count-min sketch
+ * of 4-bit counters halved every few thousand reads, and a full shard replaces its least recently used
+ * key only with a key read more often. A scan of rare keys doesn't wash the hot keys out.
+ *
+ * <p>Writes invalidate the key and bump the version of its shard, a value resolved before the write is
+ * not cached after it.
+ */
+public final class RowCache {
+    private static final int SHARDS = 16;
+    // Map entry, the key and the value objects
+    private static final int ENTRY_OVERHEAD = 128;
+    // Tombstone standing for an absent key
+    private static final Value ABSENT = new Value(0L, null);
+
+    private final long capacity;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    RowCache(final long capacity) {
+        assert capacity > 0;
+        this.capacity = capacity;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacity / SHARDS);
+        }
+    }
+
+    /**
+     * Get the cached value of a key.
+     *
+     * @param key to look up
+     * @return the value, a tombstone if the key is absent or null if it's not cached
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        final Value result = shard(hash).get(key, hash);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Get the version of the key to be passed to {@link #put(ByteBuffer, Value, long)}, it must be taken
+     * before the value is resolved.
+     *
+     * @param key to resolve
+     * @return version of the key
+     */
+    long stamp(@NotNull final ByteBuffer key) {
+        return shard(key.hashCode()).version;
+    }
+
+    /**
+     * Cache a resolved value unless the key is written since the stamp.
+     *
+     * @param key   resolved
+     * @param value of the key or null if it's absent
+     * @param stamp by {@link #stamp(ByteBuffer)}
+     */
+    void put(@NotNull final ByteBuffer key, @Nullable final Value value, final long stamp) {
+        final ByteBuffer keyCopy = copy(key);
+        final Value valueCopy = value == null
+                ? ABSENT
+                : new Value(value.getTimeStamp(), copy(value.getData()), value.getExpiry());
+        shard(keyCopy.hashCode()).put(keyCopy, valueCopy, stamp);
+    }
+
+    /**
+     * Drop the key after it's written.
+     *
+     * @param key written
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        shard(hash).invalidate(key);
+    }
+
+    /**
+     * Drop every key, e.g. after a range of keys is removed.
+     */
+    void clear() {
+        for (final Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.put(buffer.duplicate());
+        result.flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    private static int weigh(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        return ENTRY_OVERHEAD + key.remaining() + (value.isRemoved() ? 0 : value.getData().remaining());
+    }
+
+    @NotNull
+    private Shard shard(final int hash) {
+        return shards[(hash * 0x9E3779B9) >>> (Integer.SIZE - 4)];
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the size of the cached keys and values.
+     *
+     * @return approximate bytes currently cached
+     */
+    public long getSize() {
+        long result = 0;
+        for (final Shard shard : shards) {
+            result += shard.size();
+        }
+        return result;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static final class Shard {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final long capacity;
+        // Least recently used keys first
+        private final LinkedHashMap<ByteBuffer, Value> values = new LinkedHashMap<>(16, 0.75f, true);
+        // Count-min sketch, a row of counters per hash function
+        private final byte[] counters;
+        private final int mask;
+        private final int resetPeriod;
+        private int reads;
+        private long size;
+        private volatile long version;
+
+        Shard(final long capacity) {
+            this.capacity = capacity;
+            // A counter per key the shard may hold at most
+            final long keys = capacity / ENTRY_OVERHEAD;
+            final int width = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 16, keys)));
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.resetPeriod = width * 10;
+        }
+
+        @Nullable
+        synchronized Value get(@NotNull final ByteBuffer key, final int hash) {
+            record(hash);
+            return values.get(key);
+        }
+
+        synchronized void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long stamp) {
+            if (version != stamp) {
+                return;
+            }
+            final int weight = weigh(key, value);
+            if (weight > capacity) {
+                return;
+            }
+            final Value previous = values.remove(key);
+            if (previous != null) {
+                size -= weigh(key, previous);
+            }
+            if (size + weight > capacity) {
+                final Iterator<Map.Entry<ByteBuffer, Value>> eldest = values.entrySet().iterator();
+                Map.Entry<ByteBuffer, Value> victim = eldest.next();
+                // Admit the key only if it's read more often than the key to be evicted
+                if (frequency(key.hashCode()) <= frequency(victim.getKey().hashCode())) {
+                    return;
+                }
+                while (true) {
+                    eldest.remove();
+                    size -= weigh(victim.getKey(), victim.getValue());
+                    if (size + weight <= capacity) {
+                        break;
+                    }
+                    victim = eldest.next();
+                }
+            }
+            values.put(key, value);
+            size += weight;
+        }
+
+        synchronized void invalidate(@NotNull final ByteBuffer key) {
+            version++;
+            final Value previous = values.remove(key);
+            if (previous != null) {
+                size -= weigh(key, previous);
+            }
+        }
+
+        synchronized void clear() {
+            version++;
+            values.clear();
+            size = 0;
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        private void record(final int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                final int index = i * (mask + 1) + index(hash, i);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                }
+            }
+            if (++reads == resetPeriod) {
+                // Age the counts, so keys which went cold lose to new hot keys
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                reads /= 2;
+            }
+        }
+
+        private int frequency(final int hash) {
+            int result = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                result = Math.min(result, counters[i * (mask + 1) + index(hash, i)]);
+            }
+            return result;
+        }
+
+        // SplitMix64 of the hash seeded by the row, so the rows collide on different keys
+        private int index(final int hash, final int row) {
+            long mixed = hash + (row + 1) * 0x9E3779B97F4A7C15L;
+            mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+            mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+            return (int) (mixed ^ (mixed >>> 31)) & mask;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups sorted runs of similar size into tiers and merges a tier once it has enough members,
+ * so each cell is rewritten about once per tier instead of on every compaction.
+ *
+ * <p>A flushed table is a run on its own. A merge writes a new run of size-bounded tables with disjoint
+ * key ranges and puts it on a level of its own, so the inputs are freed one by one as the merge goes.
+ * Flushed tables span the whole key range and are freed only once their merge is done, so the first tier
+ * takes up to its own size of extra disk while it's merged.
+ * The level is the lowest one left by the other runs, so levels number the runs and don't grow as
+ * the storage ages.
+ */
+public final class SizeTieredCompaction implements CompactionStrategy {
+    private static final long DEFAULT_MAX_TABLE_SIZE = 64L * 1024 * 1024;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketLow;
+    private final double bucketHigh;
+    private final long minTableSize;
+    private final long maxTableSize;
+
+    /**
+     * Size-tiered strategy.
+     *
+     * @param minThreshold min number of runs in a tier to merge it
+     * @param maxThreshold max number of runs merged at once
+     * @param bucketLow    run joins a tier if its size is at least this share of the tier average
+     * @param bucketHigh   run joins a tier if its size is at most this share of the tier average
+     * @param minTableSize runs smaller than this are put into the same tier regardless of the ratio
+     * @param maxTableSize approximate size limit of tables written by a merge
+     */
+    public SizeTieredCompaction(final int minThreshold,
+                                final int maxThreshold,
+                                final double bucketLow,
+                                final double bucketHigh,
+                                final long minTableSize,
+                                final long maxTableSize) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Bad thresholds: " + minThreshold + ".." + maxThreshold);
+        }
+        if (bucketLow <= 0 || bucketLow > 1 || bucketHigh < 1) {
+            throw new IllegalArgumentException("Bad bucket bounds: " + bucketLow + ".." + bucketHigh);
+        }
+        if (maxTableSize <= 0) {
+            throw new IllegalArgumentException("Table size limit must be positive: " + maxTableSize);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.bucketLow = bucketLow;
+        this.bucketHigh = bucketHigh;
+        this.minTableSize = minTableSize;
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Size-tiered strategy with thresholds of 4 to 32 runs, tiers of 0.5 to 1.5 of the average size
+     * and tables up to 64MB.
+     *
+     * @param minTableSize runs smaller than this are put into the same tier
+     */
+    public SizeTieredCompaction(final long minTableSize) {
+        this(4, 32, 0.5, 1.5, minTableSize, DEFAULT_MAX_TABLE_SIZE);
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        final List<List<FileTable>> sorted = runs(files);
+        sorted.sort(Comparator.comparingLong(SizeTieredCompaction::size));
+
+        List<List<FileTable>> best = Collections.emptyList();
+        long bestAverage = Long.MAX_VALUE;
+        List<List<FileTable>> tier = new ArrayList<>();
+        long tierTotal = 0;
+        for (final List<FileTable> run : sorted) {
+            final long size = size(run);
+            final double average = tier.isEmpty() ? size : (double) tierTotal / tier.size();
+            final boolean fits = size <= average * bucketHigh && size >= average * bucketLow
+                    || size < minTableSize && average < minTableSize;
+            if (!fits) {
+                if (tier.size() >= minThreshold && tierTotal / tier.size() < bestAverage) {
+                    best = tier;
+                    bestAverage = tierTotal / tier.size();
+                }
+                tier = new ArrayList<>();
+                tierTotal = 0;
+            }
+            tier.add(run);
+            tierTotal += size;
+        }
+        if (tier.size() >= minThreshold && tierTotal / tier.size() < bestAverage) {
+            best = tier;
+        }
+
+        if (best.isEmpty()) {
+            return null;
+        }
+
+        // The smallest runs are the cheapest to merge
+        final List<FileTable> inputs = new ArrayList<>();
+        for (final List<FileTable> run : best.size() > maxThreshold ? best.subList(0, maxThreshold) : best) {
+            inputs.addAll(run);
+        }
+        return new Compaction(inputs, freeLevel(files, inputs), maxTableSize);
+    }
+
+    /**
+     * Merge all the tables into a single run on level 1. The run is split into tables of up to the size limit
+     * like any other merge, so the inputs are freed as the merge goes and a single table is never rewritten
+     * as a whole.
+     */
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<FileTable> files) {
+        return new Compaction(files, freeLevel(files, files), maxTableSize);
+    }
+
+    /**
+     * Group tables into sorted runs: every table of level 0 is a run, tables of other levels are runs per level.
+     */
+    @NotNull
+    private static List<List<FileTable>> runs(@NotNull final List<FileTable> files) {
+        final List<List<FileTable>> runs = new ArrayList<>();
+        final Map<Integer, List<FileTable>> levels = new HashMap<>();
+        for (final FileTable file : files) {
+            if (file.getLevel() == 0) {
+                runs.add(Collections.singletonList(file));
+            } else {
+                levels.computeIfAbsent(file.getLevel(), level -> new ArrayList<>()).add(file);
+            }
+        }
+        runs.addAll(levels.values());
+        return runs;
+    }
+
+    private static long size(@NotNull final List<FileTable> run) {
+        long size = 0;
+        for (final FileTable file : run) {
+            size += file.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Get the lowest level above 0 without tables other than the inputs, the merge of the inputs is a run
+     * of its own there.
+     *
+     * @param files  current tables on disk
+     * @param inputs tables to merge
+     * @return level for the output of the merge
+     */
+    static int freeLevel(@NotNull final List<FileTable> files, @NotNull final List<FileTable> inputs) {
+        final Set<FileTable> merged = new HashSet<>(inputs);
+        final Set<Integer> taken = new HashSet<>();
+        for (final FileTable file : files) {
+            if (!merged.contains(file)) {
+                taken.add(file.getLevel());
+            }
+        }
+        int level = 1;
+        while (taken.contains(level)) {
+            level++;
+        }
+        return level;
+    }
+}
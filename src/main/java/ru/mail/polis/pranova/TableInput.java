@@ -0,0 +1,264 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader of the blocks of a table file, one implementation per {@link IoMode}.
+ *
+ * <p>Blocks never cross the segments a table is split into, so a block is read at once. Reads without
+ * mapping fill a direct buffer reused by the thread, so the caller copies or decompresses the block
+ * before the next read. Their channels are closed by {@link #close()}, a mapping is unmapped with the
+ * last reference to it.
+ */
+interface TableInput extends Closeable {
+    /**
+     * Read a part of the table.
+     *
+     * @param position of the part in the file
+     * @param size     of the part
+     * @return the part, valid until the next read by the thread unless {@link #isMapped()}
+     * @throws IOException if the part can't be read
+     */
+    @NotNull
+    ByteBuffer read(long position, int size) throws IOException;
+
+    /**
+     * Check whether the parts are slices of the mapped file.
+     *
+     * @return true if the parts stay valid
+     */
+    boolean isMapped();
+
+    /**
+     * Open the blocks of a table.
+     *
+     * @param file          of the table
+     * @param fc            of the table to map it
+     * @param mode          how the blocks are read
+     * @param segmentStarts offsets of the segments of whole blocks
+     * @param end           offset of the end of the last block
+     * @return input of the blocks
+     * @throws IOException if the table can't be mapped or opened
+     */
+    @NotNull
+    static TableInput open(@NotNull final File file,
+                           @NotNull final FileChannel fc,
+                           @NotNull final IoMode mode,
+                           @NotNull final long[] segmentStarts,
+                           final long end) throws IOException {
+        switch (mode) {
+            case MMAP:
+                return new Mapped(fc, segmentStarts, end);
+            case PREAD:
+                return new Positional(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            case DIRECT:
+                final TableInput direct = Direct.open(file.toPath());
+                // Read through the page cache where O_DIRECT is not supported
+                return direct == null
+                        ? new Positional(FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                        : direct;
+            default:
+                throw new IllegalArgumentException("Unknown I/O mode " + mode);
+        }
+    }
+
+    /**
+     * Segments of the table mapped at open, the blocks are read in place.
+     */
+    final class Mapped implements TableInput {
+        private final ByteBuffer[] segments;
+        private final long[] segmentStarts;
+
+        Mapped(@NotNull final FileChannel fc, @NotNull final long[] segmentStarts, final long end) throws IOException {
+            this.segmentStarts = segmentStarts;
+            this.segments = new ByteBuffer[segmentStarts.length];
+            for (int i = 0; i < segments.length; i++) {
+                final long segmentEnd = i + 1 < segments.length ? segmentStarts[i + 1] : end;
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, segmentStarts[i], segmentEnd - segmentStarts[i]);
+            }
+        }
+
+        @NotNull
+        ByteBuffer segment(final int segment) {
+            return segments[segment];
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer read(final long position, final int size) {
+            final int found = Arrays.binarySearch(segmentStarts, position);
+            final int segment = found >= 0 ? found : -found - 2;
+            final ByteBuffer result = segments[segment].duplicate();
+            result.position((int) (position - segmentStarts[segment]));
+            result.limit(result.position() + size);
+            return result.slice();
+        }
+
+        @Override
+        public boolean isMapped() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Unmapped by the garbage collector
+        }
+    }
+
+    /**
+     * Positional reads through the OS page cache.
+     */
+    final class Positional implements TableInput {
+        private static final ThreadLocal<ByteBuffer> BUFFERS =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BlockIndex.MAX_BLOCK_SIZE));
+
+        private final FileChannel fc;
+
+        Positional(@NotNull final FileChannel fc) {
+            this.fc = fc;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer read(final long position, final int size) throws IOException {
+            final ByteBuffer buffer = pooled(BUFFERS, size);
+            buffer.limit(size);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+    }
+
+    /**
+     * Reads bypassing the OS page cache by {@code O_DIRECT}, blocks are read in whole pages of the file system
+     * into aligned buffers. Hot blocks are kept only in the {@link BlockCache} if there is one.
+     */
+    final class Direct implements TableInput {
+        private static final ThreadLocal<ByteBuffer> BUFFERS =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BlockIndex.MAX_BLOCK_SIZE * 2));
+        // ExtendedOpenOption.DIRECT of the JDK, null if there is no such option
+        @Nullable
+        private static final OpenOption DIRECT = option("com.sun.nio.file.ExtendedOpenOption", "DIRECT");
+
+        private final FileChannel fc;
+        private final int alignment;
+
+        private Direct(@NotNull final FileChannel fc, final int alignment) {
+            this.fc = fc;
+            this.alignment = alignment;
+        }
+
+        /**
+         * Open a table for direct reads.
+         *
+         * @param path of the table
+         * @return input or null if the JDK or the file system doesn't support direct reads
+         * @throws IOException if the table can't be opened
+         */
+        @Nullable
+        static Direct open(@NotNull final Path path) throws IOException {
+            if (DIRECT == null) {
+                return null;
+            }
+            final long alignment;
+            final FileChannel fc;
+            try {
+                alignment = Files.getFileStore(path).getBlockSize();
+                if (alignment <= 0 || alignment > BlockIndex.MAX_BLOCK_SIZE || Long.bitCount(alignment) != 1) {
+                    return null;
+                }
+                fc = FileChannel.open(path, StandardOpenOption.READ, DIRECT);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            } catch (IOException e) {
+                if (Files.exists(path)) {
+                    // Rejected by the file system, e.g. tmpfs
+                    return null;
+                }
+                throw e;
+            }
+            return new Direct(fc, (int) alignment);
+        }
+
+        @Nullable
+        private static OpenOption option(@NotNull final String type, @NotNull final String name) {
+            try {
+                return (OpenOption) Class.forName(type).getField(name).get(null);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                return null;
+            }
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer read(final long position, final int size) throws IOException {
+            final long start = position & -alignment;
+            final int skip = (int) (position - start);
+            final long length = (skip + (long) size + alignment - 1) & -alignment;
+            if (length > Integer.MAX_VALUE - alignment) {
+                throw new IOException("Part is too large: " + size);
+            }
+            final ByteBuffer buffer = pooled(BUFFERS, (int) length + alignment).alignedSlice(alignment);
+            buffer.limit((int) length);
+            // The last page of the file is read partially
+            while (buffer.position() < skip + size) {
+                if (fc.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at " + (start + buffer.position()));
+                }
+            }
+            buffer.limit(skip + size);
+            buffer.position(skip);
+            return buffer.slice();
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+    }
+
+    /**
+     * Get the buffer of the thread, a part larger than the largest block gets a buffer of its own.
+     */
+    @NotNull
+    private static ByteBuffer pooled(@NotNull final ThreadLocal<ByteBuffer> buffers, final int size) {
+        final ByteBuffer buffer = buffers.get();
+        if (size > buffer.capacity()) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
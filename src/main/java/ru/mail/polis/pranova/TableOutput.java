@@ -0,0 +1,93 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential writer of a table file, data is collected in a large direct buffer and written in chunks.
+ *
+ * <p>Flushes and compactions run on long-living threads, so every thread reuses its own buffer.
+ */
+final class TableOutput {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+    private final FileChannel fc;
+    private final ByteBuffer buffer;
+    private long written;
+
+    TableOutput(@NotNull final FileChannel fc) {
+        this.fc = fc;
+        this.buffer = BUFFERS.get();
+        buffer.clear();
+    }
+
+    /**
+     * Get the number of bytes written so far.
+     *
+     * @return offset of the next byte in the file
+     */
+    long position() {
+        return written + buffer.position();
+    }
+
+    /**
+     * Append the bytes.
+     *
+     * @param src to append, consumed
+     * @throws IOException if the file can't be written
+     */
+    void put(@NotNull final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (buffer.position() == 0 && src.remaining() >= buffer.capacity()) {
+                // Too large to be worth copying
+                written += drain(src);
+            } else if (src.remaining() <= buffer.remaining()) {
+                buffer.put(src);
+            } else {
+                final ByteBuffer part = src.duplicate();
+                part.limit(part.position() + buffer.remaining());
+                buffer.put(part);
+                src.position(part.position());
+                flush();
+            }
+        }
+    }
+
+    void putInt(final int value) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            flush();
+        }
+        buffer.putInt(value);
+    }
+
+    void putLong(final long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            flush();
+        }
+        buffer.putLong(value);
+    }
+
+    /**
+     * Write the buffered bytes to the file.
+     *
+     * @throws IOException if the file can't be written
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        written += drain(buffer);
+        buffer.clear();
+    }
+
+    private int drain(@NotNull final ByteBuffer src) throws IOException {
+        final int size = src.remaining();
+        while (src.hasRemaining()) {
+            fc.write(src);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable view of the storage: the memtable taking writes, memtables being flushed and tables on disk.
+ * Readers grab the current instance once and never block, writers replace it atomically.
+ */
+final class TableSet {
+    @NotNull
+    final MemTable memTable;
+    @NotNull
+    final List<MemTable> flushing;
+    @NotNull
+    final List<FileTable> files;
+    // Range tombstones of the files, fragmented on first use
+    private volatile RangeTombstones fileRanges;
+    // Files by descending max timestamp, sorted on first use
+    private volatile FileTable[] newestFirst;
+
+    TableSet(@NotNull final MemTable memTable,
+             @NotNull final List<MemTable> flushing,
+             @NotNull final List<FileTable> files) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Get the range tombstones of all the tables on disk.
+     *
+     * @return fragmented range tombstones
+     */
+    @NotNull
+    RangeTombstones fileRangeTombstones() {
+        RangeTombstones result = fileRanges;
+        if (result == null) {
+            final Set<RangeTombstone> ranges = new HashSet<>();
+            for (final FileTable file : files) {
+                ranges.addAll(file.rangeTombstones());
+            }
+            result = RangeTombstones.of(ranges);
+            fileRanges = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the files in the order they should be probed for a key.
+     *
+     * @return files by descending max timestamp of their cells
+     */
+    @NotNull
+    FileTable[] newestFirst() {
+        FileTable[] result = newestFirst;
+        if (result == null) {
+            result = files.toArray(new FileTable[0]);
+            Arrays.sort(result, Comparator.comparingLong((FileTable file) -> file.stats().getMaxTimestamp()).reversed());
+            newestFirst = result;
+        }
+        return result;
+    }
+
+    /**
+     * Keep the tables on disk readable until {@link #release()}, tables compacted away are closed afterwards.
+     *
+     * @return false if a table is closed already, so a newer set must be read instead
+     * @throws IOException if a table can't be closed
+     */
+    boolean retain() throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            if (!files.get(i).retain()) {
+                for (int j = 0; j < i; j++) {
+                    files.get(j).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void release() throws IOException {
+        for (final FileTable file : files) {
+            file.release();
+        }
+    }
+
+    /**
+     * Freeze the current memtable and start a fresh one.
+     */
+    @NotNull
+    TableSet startFlushing() {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing);
+        newFlushing.add(memTable);
+        return new TableSet(new MemTable(), newFlushing, files);
+    }
+
+    /**
+     * Replace the frozen memtable with the table it was written to.
+     */
+    @NotNull
+    TableSet flushed(@NotNull final MemTable flushed, @NotNull final FileTable file) {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing);
+        newFlushing.remove(flushed);
+        final List<FileTable> newFiles = new ArrayList<>(files);
+        newFiles.add(file);
+        return new TableSet(memTable, newFlushing, newFiles);
+    }
+
+    /**
+     * Replace compacted tables with the result of compaction.
+     */
+    @NotNull
+    TableSet compacted(@NotNull final Collection<FileTable> from, @NotNull final Collection<FileTable> to) {
+        final List<FileTable> newFiles = new ArrayList<>(files);
+        newFiles.removeAll(from);
+        newFiles.addAll(to);
+        return new TableSet(memTable, flushing, newFiles);
+    }
+}
@@ -0,0 +1,230 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summary of a table kept in its footer, so it's known without scanning the cells.
+ */
+public final class TableStats {
+    private final long liveCount;
+    private final long tombstoneCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final long valueBytes;
+    @Nullable
+    private final ByteBuffer minKey;
+    @Nullable
+    private final ByteBuffer maxKey;
+    private final long expiringCount;
+    private final long maxExpiry;
+    private final long rangeTombstoneCount;
+
+    private TableStats(final long liveCount,
+                       final long tombstoneCount,
+                       final long minTimestamp,
+                       final long maxTimestamp,
+                       final long valueBytes,
+                       @Nullable final ByteBuffer minKey,
+                       @Nullable final ByteBuffer maxKey,
+                       final long expiringCount,
+                       final long maxExpiry,
+                       final long rangeTombstoneCount) {
+        this.liveCount = liveCount;
+        this.tombstoneCount = tombstoneCount;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.valueBytes = valueBytes;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+        this.expiringCount = expiringCount;
+        this.maxExpiry = maxExpiry;
+        this.rangeTombstoneCount = rangeTombstoneCount;
+    }
+
+    public long getLiveCount() {
+        return liveCount;
+    }
+
+    public long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    /**
+     * Get the share of tombstones among all cells.
+     *
+     * @return ratio from 0 to 1, 0 for an empty table
+     */
+    public double getTombstoneRatio() {
+        final long total = liveCount + tombstoneCount;
+        return total == 0 ? 0.0 : (double) tombstoneCount / total;
+    }
+
+    /**
+     * Get the share of cells which are tombstones or surely expired.
+     *
+     * @param nowMillis current epoch milliseconds
+     * @return ratio from 0 to 1, 0 for an empty table
+     */
+    public double getDeadRatio(final long nowMillis) {
+        final long total = liveCount + tombstoneCount;
+        final long expired = maxExpiry <= nowMillis ? expiringCount : 0L;
+        return total == 0 ? 0.0 : (double) (tombstoneCount + expired) / total;
+    }
+
+    public long getExpiringCount() {
+        return expiringCount;
+    }
+
+    /**
+     * Get the time all the expiring cells are expired by.
+     *
+     * @return epoch milliseconds or {@link Value#NEVER} if no cell expires
+     */
+    public long getMaxExpiry() {
+        return maxExpiry;
+    }
+
+    public long getRangeTombstoneCount() {
+        return rangeTombstoneCount;
+    }
+
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public long getValueBytes() {
+        return valueBytes;
+    }
+
+    @Nullable
+    public ByteBuffer getMinKey() {
+        return minKey == null ? null : minKey.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    public ByteBuffer getMaxKey() {
+        return maxKey == null ? null : maxKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer toBuffer() {
+        final int minKeySize = minKey == null ? 0 : minKey.remaining();
+        final int maxKeySize = maxKey == null ? 0 : maxKey.remaining();
+        final ByteBuffer result = ByteBuffer.allocate(Long.BYTES * 8 + Integer.BYTES * 2 + minKeySize + maxKeySize);
+        result.putLong(liveCount);
+        result.putLong(tombstoneCount);
+        result.putLong(minTimestamp);
+        result.putLong(maxTimestamp);
+        result.putLong(valueBytes);
+        putKey(result, minKey);
+        putKey(result, maxKey);
+        result.putLong(expiringCount);
+        result.putLong(maxExpiry);
+        result.putLong(rangeTombstoneCount);
+        result.rewind();
+        return result;
+    }
+
+    private static void putKey(@NotNull final ByteBuffer to, @Nullable final ByteBuffer key) {
+        if (key == null) {
+            to.putInt(-1);
+        } else {
+            to.putInt(key.remaining());
+            to.put(key.duplicate());
+        }
+    }
+
+    @NotNull
+    static TableStats from(@NotNull final ByteBuffer section) {
+        final ByteBuffer buffer = section.duplicate();
+        final long liveCount = buffer.getLong();
+        final long tombstoneCount = buffer.getLong();
+        final long minTimestamp = buffer.getLong();
+        final long maxTimestamp = buffer.getLong();
+        final long valueBytes = buffer.getLong();
+        final ByteBuffer minKey = getKey(buffer);
+        final ByteBuffer maxKey = getKey(buffer);
+        // Added in version 2
+        final long expiringCount = buffer.remaining() >= Long.BYTES * 2 ? buffer.getLong() : 0L;
+        final long maxExpiry = buffer.remaining() >= Long.BYTES ? buffer.getLong() : Value.NEVER;
+        final long rangeTombstoneCount = buffer.remaining() >= Long.BYTES ? buffer.getLong() : 0L;
+        return new TableStats(liveCount, tombstoneCount, minTimestamp, maxTimestamp, valueBytes, minKey, maxKey,
+                expiringCount, maxExpiry, rangeTombstoneCount);
+    }
+
+    @Nullable
+    private static ByteBuffer getKey(@NotNull final ByteBuffer from) {
+        final int size = from.getInt();
+        if (size < 0) {
+            return null;
+        }
+        final ByteBuffer key = from.slice();
+        key.limit(size);
+        from.position(from.position() + size);
+        return key;
+    }
+
+    /**
+     * Accumulates stats of cells written in ascending key order.
+     */
+    static final class Collector {
+        private long liveCount;
+        private long tombstoneCount;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp;
+        private long valueBytes;
+        private ByteBuffer minKey;
+        private ByteBuffer maxKey;
+        private long expiringCount;
+        private long maxExpiry = Value.NEVER;
+        private long rangeTombstoneCount;
+
+        void add(@NotNull final Cell cell) {
+            final Value value = cell.getValue();
+            if (value.isRemoved()) {
+                tombstoneCount++;
+            } else {
+                liveCount++;
+                valueBytes += value.getData().remaining();
+            }
+            if (value.getExpiry() != Value.NEVER) {
+                expiringCount++;
+                maxExpiry = Math.max(maxExpiry, value.getExpiry());
+            }
+            minTimestamp = Math.min(minTimestamp, value.getTimeStamp());
+            maxTimestamp = Math.max(maxTimestamp, value.getTimeStamp());
+            if (minKey == null) {
+                minKey = cell.getKey();
+            }
+            maxKey = cell.getKey();
+        }
+
+        void add(@NotNull final RangeTombstone range) {
+            rangeTombstoneCount++;
+            minTimestamp = Math.min(minTimestamp, range.getTimeStamp());
+            maxTimestamp = Math.max(maxTimestamp, range.getTimeStamp());
+        }
+
+        @NotNull
+        TableStats build() {
+            return new TableStats(
+                    liveCount,
+                    tombstoneCount,
+                    minTimestamp == Long.MAX_VALUE ? 0L : minTimestamp,
+                    maxTimestamp,
+                    valueBytes,
+                    minKey,
+                    maxKey,
+                    expiringCount,
+                    maxExpiry,
+                    rangeTombstoneCount);
+        }
+    }
+}
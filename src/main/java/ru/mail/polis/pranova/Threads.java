@@ -0,0 +1,25 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadFactory;
+
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * Factory of daemon threads, so an abandoned storage doesn't keep JVM alive.
+     *
+     * @param name of the threads
+     * @return thread factory
+     */
+    @NotNull
+    static ThreadFactory daemon(@NotNull final String name) {
+        return r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
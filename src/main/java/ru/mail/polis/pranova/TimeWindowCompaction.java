@@ -0,0 +1,116 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Buckets tables into time windows and keeps a single table per window.
+ *
+ * <p>The newest window still receives flushes and is compacted size-tiered. Once a newer window appears,
+ * every older window with more than one table is merged into one table and then left alone, so data of
+ * append-mostly time series is rewritten about once. Merges of the newest window go to the lowest level
+ * without other tables.
+ */
+public final class TimeWindowCompaction implements CompactionStrategy {
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    private final long windowMillis;
+    private final Source source;
+    private final CompactionStrategy currentWindow;
+
+    /**
+     * Where the time of a table comes from.
+     */
+    public enum Source {
+        /**
+         * The newest write timestamp of the table cells.
+         */
+        TIMESTAMP,
+        /**
+         * The last key of the table which starts with big-endian epoch milliseconds.
+         */
+        KEY_PREFIX
+    }
+
+    /**
+     * Time-window strategy.
+     *
+     * @param windowMillis  window length in milliseconds
+     * @param source        where the time of a table comes from
+     * @param currentWindow strategy to compact the newest window with
+     */
+    public TimeWindowCompaction(final long windowMillis,
+                                @NotNull final Source source,
+                                @NotNull final CompactionStrategy currentWindow) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.source = source;
+        this.currentWindow = currentWindow;
+    }
+
+    /**
+     * Time-window strategy using size-tiered compaction for the newest window.
+     *
+     * @param windowMillis window length in milliseconds
+     * @param source       where the time of a table comes from
+     */
+    public TimeWindowCompaction(final long windowMillis, @NotNull final Source source) {
+        this(windowMillis, source, new SizeTieredCompaction(0L));
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        final NavigableMap<Long, List<FileTable>> windows = new TreeMap<>();
+        final List<FileTable> empty = new ArrayList<>();
+        for (final FileTable file : files) {
+            if (file.rows() == 0 && file.rangeTombstones().isEmpty()) {
+                empty.add(file);
+            } else {
+                windows.computeIfAbsent(windowOf(file), window -> new ArrayList<>()).add(file);
+            }
+        }
+        if (!empty.isEmpty()) {
+            return new Compaction(empty);
+        }
+        if (windows.isEmpty()) {
+            return null;
+        }
+
+        // Closed windows are merged once, newest first as it's the most likely to be read
+        final Map.Entry<Long, List<FileTable>> newest = windows.pollLastEntry();
+        for (final List<FileTable> closed : windows.descendingMap().values()) {
+            if (closed.size() > 1) {
+                return new Compaction(closed);
+            }
+        }
+        final Compaction picked = currentWindow.pick(newest.getValue());
+        if (picked == null || picked.getLevel() == 0) {
+            return picked;
+        }
+        // The strategy of the window sees only its tables, a level shared with older windows would overlap
+        return new Compaction(picked.getInputs(), SizeTieredCompaction.freeLevel(files, picked.getInputs()),
+                picked.getMaxFileSize());
+    }
+
+    private long windowOf(@NotNull final FileTable file) {
+        final long millis;
+        // Tables of range tombstones only have no keys
+        if (source == Source.TIMESTAMP || file.rows() == 0) {
+            millis = file.stats().getMaxTimestamp() / NANOS_PER_MILLI;
+        } else {
+            final ByteBuffer key = file.lastKey();
+            millis = key.remaining() < Long.BYTES ? 0L : key.getLong(key.position());
+        }
+        return Math.floorDiv(millis, windowMillis);
+    }
+}
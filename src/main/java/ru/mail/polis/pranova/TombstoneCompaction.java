@@ -0,0 +1,89 @@
+package ru.mail.polis.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cleans up tables full of tombstones or expired cells before anything else, otherwise delegates
+ * to another strategy.
+ *
+ * <p>Dead cells cost every range read that crosses them. A table whose share of dead cells exceeds
+ * the threshold is merged together with all the tables overlapping it, so its tombstones are actually
+ * dropped instead of being carried over to the output.
+ */
+public final class TombstoneCompaction implements CompactionStrategy {
+    private final CompactionStrategy delegate;
+    private final double threshold;
+
+    /**
+     * Tombstone-triggered strategy.
+     *
+     * @param delegate  strategy to use when no table has too many dead cells
+     * @param threshold share of dead cells from 0 to 1 which makes a table a candidate
+     */
+    public TombstoneCompaction(@NotNull final CompactionStrategy delegate, final double threshold) {
+        if (!(threshold >= 0.0 && threshold < 1.0)) {
+            throw new IllegalArgumentException("Threshold must be in [0, 1): " + threshold);
+        }
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Tombstone-triggered strategy with 20% threshold.
+     *
+     * @param delegate strategy to use when no table has too many dead cells
+     */
+    public TombstoneCompaction(@NotNull final CompactionStrategy delegate) {
+        this(delegate, 0.2);
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final List<FileTable> files) {
+        final long now = System.currentTimeMillis();
+        final FileTable worst = files.stream()
+                .filter(file -> file.rows() > 0 && file.stats().getDeadRatio(now) > threshold)
+                .max(Comparator.comparingDouble(file -> file.stats().getDeadRatio(now)))
+                .orElse(null);
+        if (worst == null) {
+            return delegate.pick(files);
+        }
+        return delegate.major(overlapping(worst, files));
+    }
+
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final List<FileTable> files) {
+        return delegate.major(files);
+    }
+
+    /**
+     * Collect the table and every table overlapping the key range of the collected ones.
+     */
+    @NotNull
+    private static List<FileTable> overlapping(@NotNull final FileTable table, @NotNull final List<FileTable> files) {
+        final List<FileTable> result = new ArrayList<>();
+        result.add(table);
+        ByteBuffer from = table.firstKey();
+        ByteBuffer to = table.lastKey();
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (final FileTable file : files) {
+                if (!result.contains(file) && file.overlaps(from, to)) {
+                    result.add(file);
+                    from = file.firstKey().compareTo(from) < 0 ? file.firstKey() : from;
+                    to = file.lastKey().compareTo(to) > 0 ? file.lastKey() : to;
+                    grown = true;
+                }
+            }
+        }
+        return result;
+    }
+}
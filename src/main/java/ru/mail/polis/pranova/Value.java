@@ -7,19 +7,44 @@ import java.nio.ByteBuffer;
 import static ru.mail.polis.pranova.Time.currentTime;
 
 public final class Value implements Comparable<Value> {
+    /**
+     * Expiry of values living forever.
+     */
+    public static final long NEVER = 0L;
+
     private final long timestamp;
     private final ByteBuffer data;
+    // Epoch milliseconds
+    private final long expiry;
 
     Value(final long timestamp, final ByteBuffer data) {
+        this(timestamp, data, NEVER);
+    }
+
+    Value(final long timestamp, final ByteBuffer data, final long expiry) {
         assert timestamp >= 0;
+        assert expiry >= 0 && (data != null || expiry == NEVER);
         this.timestamp = timestamp;
         this.data = data;
+        this.expiry = expiry;
     }
 
     public static Value of(final ByteBuffer data) {
         return new Value(currentTime(), data.duplicate());
     }
 
+    /**
+     * Create a value which expires after the given time.
+     *
+     * @param data      of the value
+     * @param ttlMillis time to live in milliseconds
+     * @return new value
+     */
+    public static Value of(final ByteBuffer data, final long ttlMillis) {
+        assert ttlMillis > 0;
+        return new Value(currentTime(), data.duplicate(), System.currentTimeMillis() + ttlMillis);
+    }
+
     public static Value tombstone() {
         return new Value(currentTime(), null);
     }
@@ -41,6 +66,25 @@ public final class Value implements Comparable<Value> {
         return data == null;
     }
 
+    /**
+     * Check whether the value is removed or expired.
+     *
+     * @param nowMillis current epoch milliseconds
+     * @return false if the value is visible
+     */
+    public boolean isDead(final long nowMillis) {
+        return data == null || expiry != NEVER && expiry <= nowMillis;
+    }
+
+    /**
+     * Get the expiry of the value.
+     *
+     * @return epoch milliseconds or {@link #NEVER}
+     */
+    public long getExpiry() {
+        return expiry;
+    }
+
     @Override
     public int compareTo(@NotNull final Value o) {
         return -Long.compare(timestamp, o.timestamp);
@@ -0,0 +1,495 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.Compaction;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.LeveledCompaction;
+import ru.mail.polis.pranova.SizeTieredCompaction;
+import ru.mail.polis.pranova.TimeWindowCompaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background compaction tests for {@link DAO} implementations.
+ */
+class BackgroundCompactionTest extends TestBase {
+    private static final long TIMEOUT_MILLIS = 30_000L;
+
+    @Test
+    void boundedTableCount(@TempDir File data) throws Exception {
+        final int valueSize = 256 * 1024;
+        final int keyCount = 200;
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Every few upserts flush a table
+            for (int i = 0; i < keyCount; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(valueSize);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+
+            // Nobody calls compact(), still the number of tables goes down
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (tables(data) > 8 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(tables(data) <= 8, "Too many tables: " + tables(data));
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void strategyPerStorage() {
+        // Strategies keep state between compactions of their storage
+        final Config config = Config.DEFAULT.withCompactionStrategy(() -> new LeveledCompaction(4, 1024, 4, 256));
+        assertNotSame(config.getCompactionStrategy(), config.getCompactionStrategy());
+        assertNotSame(Config.DEFAULT.getCompactionStrategy(), Config.DEFAULT.getCompactionStrategy());
+    }
+
+    @Test
+    void leveled(@TempDir File data) throws Exception {
+        final long tableSize = 64 * 1024;
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                () -> new LeveledCompaction(4, 4 * tableSize, 4, tableSize));
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        try (DAO dao = new LSMDao(data, tableSize, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (level0(data) >= 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        // Tables of each level but 0 have disjoint key ranges
+        final Map<Integer, List<FileTable>> levels = new HashMap<>();
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            final String name = file.getName();
+            final int separator = name.indexOf('-');
+            if (separator > 0) {
+                final int level = Integer.parseInt(name.substring(separator + 1, name.length() - ".dat".length()));
+                levels.computeIfAbsent(level, l -> new ArrayList<>()).add(new FileTable(file, level));
+            }
+        }
+        assertFalse(levels.isEmpty());
+        for (final List<FileTable> level : levels.values()) {
+            level.sort(Comparator.comparing(FileTable::firstKey));
+            for (int i = 1; i < level.size(); i++) {
+                assertTrue(level.get(i - 1).lastKey().compareTo(level.get(i).firstKey()) < 0);
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, tableSize, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void timeWindows(@TempDir File data) throws Exception {
+        final long tableSize = 16 * 1024;
+        final long window = 1000L;
+        final int windows = 4;
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                new TimeWindowCompaction(window, TimeWindowCompaction.Source.KEY_PREFIX));
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+
+        try (DAO dao = new LSMDao(data, tableSize, config)) {
+            // Time series keys prefixed with milliseconds, several flushes per window
+            for (int i = 0; i < windows * 500; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Long.BYTES + KEY_LENGTH);
+                key.putLong(i / 500 * window + i % 500);
+                key.put(randomKey());
+                key.rewind();
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (closedWindowTables(data, window, windows) > windows - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        // Exactly one table per closed window
+        assertEquals(windows - 1, closedWindowTables(data, window, windows));
+
+        try (DAO dao = new LSMDao(data, tableSize, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void overlappingWindows(@TempDir File data) throws Exception {
+        final long window = 1_000L;
+        final int valueSize = 64 * 1024;
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                new TimeWindowCompaction(window, TimeWindowCompaction.Source.TIMESTAMP));
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(randomKey());
+        }
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        try (DAO dao = new LSMDao(data, 20L * valueSize, config)) {
+            // Every window rewrites the same keys in four flushes merged size-tiered
+            for (int round = 0; round < 2; round++) {
+                // All the flushes of a round fall into one window, a tier split by the window end isn't merged
+                Thread.sleep(window - System.currentTimeMillis() % window);
+                for (int flush = 0; flush < 4; flush++) {
+                    for (final ByteBuffer key : keys) {
+                        final ByteBuffer value = randomBuffer(valueSize);
+                        dao.upsert(key, value);
+                        entries.put(key, value);
+                    }
+                }
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (level0(data) > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, level0(data));
+            }
+            assertContents(dao, entries);
+        }
+
+        // The merges of the windows overlap, so they don't share a level
+        final List<String> levels = new ArrayList<>();
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            final String name = file.getName();
+            levels.add(name.substring(name.indexOf('-') + 1));
+        }
+        assertEquals(2, levels.size());
+        assertNotEquals(levels.get(0), levels.get(1));
+    }
+
+    @Test
+    void levelsStayBounded(@TempDir File data) throws Exception {
+        // Every merge takes all the runs
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                () -> new SizeTieredCompaction(2, 32, 0.5, 1.5, Long.MAX_VALUE, 64L * 1024 * 1024));
+        final int valueSize = 64 * 1024;
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        try (DAO dao = new LSMDao(data, 4 * valueSize, config)) {
+            for (int i = 0; i < 40; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(valueSize);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (tables(data) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                dao.upsert(randomKey(), randomBuffer(valueSize));
+            }
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                dao.compact();
+            }
+        }
+
+        // The merges reuse the level of the run they replace
+        final File[] files = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")));
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith("-1.dat"), files[0].getName());
+    }
+
+    @Test
+    void overlappingLevel(@TempDir File data) throws Exception {
+        // Every major compaction merges the flushed tables into level 1
+        final Config config = Config.DEFAULT.withCompactionStrategy(new CompactionStrategy() {
+            @Override
+            public Compaction pick(final List<FileTable> files) {
+                return null;
+            }
+
+            @Override
+            public Compaction major(final List<FileTable> files) {
+                final List<FileTable> flushed = new ArrayList<>();
+                for (final FileTable file : files) {
+                    if (file.getLevel() == 0) {
+                        flushed.add(file);
+                    }
+                }
+                return new Compaction(flushed, 1, Long.MAX_VALUE);
+            }
+        });
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(randomKey());
+        }
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        for (int round = 0; round < 2; round++) {
+            for (int flush = 0; flush < 2; flush++) {
+                try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                    for (final ByteBuffer key : keys) {
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(key, value);
+                        entries.put(key, value);
+                    }
+                }
+            }
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                dao.compact();
+            }
+        }
+        assertEquals(0, level0(data));
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            assertContents(dao, entries);
+            final Iterator<Record> reverse = dao.decreasingIterator(entries.lastKey());
+            for (final ByteBuffer key : entries.descendingKeySet()) {
+                assertEquals(key, reverse.next().getKey());
+            }
+            assertFalse(reverse.hasNext());
+        }
+    }
+
+    @Test
+    void subcompactions(@TempDir File data) throws Exception {
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withSubcompactions(4);
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        try (DAO dao = new LSMDao(data, 1024 * 1024, config)) {
+            for (int i = 0; i < 20_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(256);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, 1024 * 1024, config)) {
+            dao.compact();
+        }
+
+        // Each key range got its own table
+        final List<FileTable> outputs = new ArrayList<>();
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            outputs.add(new FileTable(file));
+        }
+        assertEquals(4, outputs.size());
+        outputs.sort(Comparator.comparing(FileTable::firstKey));
+        for (int i = 1; i < outputs.size(); i++) {
+            assertTrue(outputs.get(i - 1).lastKey().compareTo(outputs.get(i).firstKey()) < 0);
+        }
+
+        try (DAO dao = new LSMDao(data, 1024 * 1024, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void boundedOutputs(@TempDir File data) throws Exception {
+        final long tableSize = 64 * 1024;
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                new SizeTieredCompaction(4, 32, 0.5, 1.5, 0, tableSize));
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(256);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            dao.compact();
+
+            // A sequence of tables instead of a single one
+            final File[] tables = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")));
+            assertTrue(tables.length > 1);
+            for (final File table : tables) {
+                assertTrue(table.length() < 2 * tableSize, "Too large " + table + ": " + table.length());
+            }
+            assertEquals(0, Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".cmp"))).length);
+        }
+
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            assertContents(dao, entries);
+        }
+    }
+
+    @Test
+    void peakDiskUsage(@TempDir File data) throws Exception {
+        final long tableSize = 64 * 1024;
+        final AtomicLong peak = new AtomicLong();
+        final AtomicInteger cells = new AtomicInteger();
+        // Sample the directory while the merge goes, the filter runs on every cell written
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(new SizeTieredCompaction(32, 32, 0.5, 1.5, 0, tableSize))
+                .withSubcompactions(1)
+                .withCompactionFilter((key, value) -> {
+                    if (cells.incrementAndGet() % 16 == 0) {
+                        peak.accumulateAndGet(directorySize(data), Math::max);
+                    }
+                    return value;
+                });
+
+        // Flushed tables span the whole key range, so they are freed only once the merge is done
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            for (int i = 0; i < 8_000; i++) {
+                dao.upsert(randomKey(), randomBuffer(256));
+            }
+        }
+        final long flushed = directorySize(data);
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            peak.set(0);
+            dao.compact();
+        }
+        assertTrue(peak.get() > flushed * 3 / 2, "Peak " + peak + " of " + flushed);
+        assertTrue(peak.get() < flushed * 2 + 2 * tableSize, "Peak " + peak + " of " + flushed);
+
+        // Tables of a run are freed one by one, so only the table being written is extra
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomBuffer(256));
+            }
+        }
+        final long run = directorySize(data);
+        try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+            peak.set(0);
+            dao.compact();
+        }
+        assertTrue(peak.get() < run + 3 * tableSize, "Peak " + peak + " of " + run);
+    }
+
+    @Test
+    void interruptedCompaction(@TempDir File data) throws Exception {
+        final long tableSize = 16 * 1024;
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                new SizeTieredCompaction(2, 32, 0.5, 1.5, Long.MAX_VALUE, tableSize));
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        for (int round = 0; round < 5; round++) {
+            // Close while background compaction is likely still running
+            try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+                for (int i = 0; i < 1_000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomBuffer(256);
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+                final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> removed = entries.entrySet().iterator();
+                for (int i = 0; i < 200; i++) {
+                    dao.remove(removed.next().getKey());
+                    removed.remove();
+                }
+            }
+
+            try (DAO dao = new LSMDao(data, 4 * tableSize, config)) {
+                assertContents(dao, entries);
+            }
+        }
+    }
+
+    private static void assertContents(final DAO dao, final Map<ByteBuffer, ByteBuffer> entries) throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static long directorySize(final File data) {
+        long size = 0;
+        for (final File file : Objects.requireNonNull(data.listFiles())) {
+            // Zero if deleted meanwhile
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static int closedWindowTables(final File data, final long window, final int windows) throws IOException {
+        int count = 0;
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            final FileTable table;
+            try {
+                table = new FileTable(file);
+            } catch (NoSuchFileException e) {
+                // Compacted away meanwhile
+                continue;
+            }
+            if (table.rows() > 0 && table.lastKey().getLong() / window < windows - 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int level0(final File data) {
+        return Objects.requireNonNull(data.listFiles((dir, name) -> name.matches("PRL\\d+\\.dat"))).length;
+    }
+
+    static int tables(final File data) throws IOException {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        if (files == null) {
+            throw new IOException("Can't list " + data);
+        }
+        return files.length;
+    }
+}
@@ -0,0 +1,494 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.BlockCache;
+import ru.mail.polis.pranova.Codec;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.IoMode;
+import ru.mail.polis.pranova.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Block cache and I/O mode tests.
+ */
+class BlockCacheTest extends TestBase {
+    private static final Config MANUAL = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+
+    @Test
+    void readWithoutMapping(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (final Codec codec : new Codec[]{Codec.NONE, Codec.DEFLATE}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withCodec(codec))) {
+                for (int i = 0; i < 3000; i++) {
+                    final ByteBuffer key = randomKey();
+                    // Some first keys don't fit the head of the block read at once
+                    final ByteBuffer value = randomBuffer(i % 500 == 0 ? 10_000 : 50);
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+                dao.upsert(ByteBuffer.wrap(new byte[200]), randomValue());
+                dao.remove(ByteBuffer.wrap(new byte[200]));
+            }
+        }
+
+        final BlockCache cache = new BlockCache(1024 * 1024);
+        for (final Config config : new Config[]{
+                MANUAL.withIoMode(IoMode.PREAD),
+                MANUAL.withIoMode(IoMode.PREAD).withBlockCache(cache),
+                MANUAL.withBlockCache(cache)}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                for (int round = 0; round < 2; round++) {
+                    for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                        assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                    }
+                }
+                assertThrows(NoSuchElementException.class, () -> dao.get(ByteBuffer.wrap(new byte[200])));
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final ByteBuffer key : entries.keySet()) {
+                    assertEquals(key, records.next().getKey());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+        assertTrue(cache.getHitCount() > cache.getMissCount(),
+                "Hits: " + cache.getHitCount() + ", misses: " + cache.getMissCount());
+        assertTrue(cache.getSize() <= cache.getCapacity());
+    }
+
+    @Test
+    void readDirect(@TempDir File data) throws IOException {
+        assumeTrue(directSupported(data), "No O_DIRECT on the file system");
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (final Codec codec : new Codec[]{Codec.NONE, Codec.DEFLATE}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withCodec(codec))) {
+                for (int i = 0; i < 3000; i++) {
+                    final ByteBuffer key = randomKey();
+                    // Blocks and cells cross the pages of the file system
+                    final ByteBuffer value = randomBuffer(i % 500 == 0 ? 10_000 : 50 + i % 7);
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        for (final Config config : new Config[]{
+                MANUAL.withIoMode(IoMode.DIRECT),
+                MANUAL.withIoMode(IoMode.DIRECT).withBlockCache(new BlockCache(1024 * 1024))}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void modesAgree(@TempDir File data) throws IOException {
+        final IoMode[] modes = directSupported(data)
+                ? IoMode.values()
+                : new IoMode[]{IoMode.MMAP, IoMode.PREAD};
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(100));
+                keys.add(key);
+            }
+        }
+        Collections.shuffle(keys);
+
+        List<ByteBuffer> expected = null;
+        for (final IoMode mode : modes) {
+            final Config config = MANUAL.withIoMode(mode).withBlockCache(new BlockCache(1024 * 1024));
+            final List<ByteBuffer> values = new ArrayList<>();
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                // The second round is served by the cache
+                for (int round = 0; round < 2; round++) {
+                    final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                    while (records.hasNext()) {
+                        final Record record = records.next();
+                        values.add(record.getKey());
+                        values.add(record.getValue());
+                    }
+                    for (final ByteBuffer key : keys) {
+                        values.add(dao.get(key));
+                    }
+                }
+            }
+            if (expected == null) {
+                expected = values;
+            } else {
+                assertEquals(expected, values, mode.toString());
+            }
+        }
+    }
+
+    /**
+     * Compare the I/O modes on point lookups and full scans, run with {@code gradle benchmark}.
+     */
+    @Test
+    @Tag("benchmark")
+    void benchmarkModes(@TempDir File data) throws IOException {
+        final IoMode[] modes = directSupported(data)
+                ? IoMode.values()
+                : new IoMode[]{IoMode.MMAP, IoMode.PREAD};
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 100_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(100));
+                keys.add(key);
+            }
+        }
+        Collections.shuffle(keys);
+
+        for (final IoMode mode : modes) {
+            for (final BlockCache cache : new BlockCache[]{null, new BlockCache(32 * 1024 * 1024)}) {
+                final Config config = cache == null
+                        ? MANUAL.withIoMode(mode)
+                        : MANUAL.withIoMode(mode).withBlockCache(cache);
+                long scan = Long.MAX_VALUE;
+                long point = Long.MAX_VALUE;
+                try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                    // The first round warms up the code and the caches
+                    for (int round = 0; round < 6; round++) {
+                        long start = System.nanoTime();
+                        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                        int count = 0;
+                        while (records.hasNext()) {
+                            records.next();
+                            count++;
+                        }
+                        assertEquals(keys.size(), count);
+                        if (round > 0) {
+                            scan = Math.min(scan, System.nanoTime() - start);
+                        }
+
+                        start = System.nanoTime();
+                        for (final ByteBuffer key : keys) {
+                            dao.get(key);
+                        }
+                        if (round > 0) {
+                            point = Math.min(point, System.nanoTime() - start);
+                        }
+                    }
+                }
+                System.out.printf("%-6s %-8s point %6d ns/key, scan %6d ns/key%n",
+                        mode, cache == null ? "no cache" : "cache", point / keys.size(), scan / keys.size());
+            }
+        }
+    }
+
+    @Test
+    void readCompactedAway(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int table = 0; table < 2; table++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+                for (int i = 0; i < 3000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomBuffer(100);
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withIoMode(IoMode.PREAD))) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(entries.firstKey(), records.next().getKey());
+            // The table read by the iterator is closed only after the iterator is done with it
+            dao.compact();
+            assertEquals(1, data.list((dir, name) -> name.endsWith(".dat")).length);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry
+                    : entries.tailMap(entries.firstKey(), false).entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void releaseAbandonedIterators(@TempDir File data) throws Exception {
+        assumeTrue(Files.isDirectory(FDS), "No /proc to list open files");
+        final TreeSet<ByteBuffer> keys = new TreeSet<>();
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    dao.upsert(key, randomBuffer(100));
+                    keys.add(key);
+                }
+            }
+            if (round == 0) {
+                continue;
+            }
+            final Set<Path> old = tables(data);
+            try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withIoMode(IoMode.PREAD))) {
+                assertEquals(2, openFiles(old::contains));
+                if (round == 1) {
+                    // A range is released at its end even if the tables have more keys
+                    final Iterator<Record> range = dao.range(keys.first(), keys.higher(keys.first()));
+                    assertEquals(keys.first(), range.next().getKey());
+                    assertFalse(range.hasNext());
+                    dao.compact();
+                    assertEquals(0, openFiles(old::contains));
+                } else {
+                    // A scan dropped half-way is released when it's collected
+                    Iterator<Record> scan = dao.iterator(ByteBuffer.allocate(0));
+                    assertEquals(keys.first(), scan.next().getKey());
+                    dao.compact();
+                    assertEquals(2, openFiles(old::contains));
+                    scan = null;
+                    final long deadline = System.currentTimeMillis() + 10_000;
+                    while (openFiles(old::contains) > 0 && System.currentTimeMillis() < deadline) {
+                        System.gc();
+                        Thread.sleep(10);
+                    }
+                    assertEquals(0, openFiles(old::contains));
+                }
+            }
+        }
+    }
+
+    @Test
+    void searchReadsInPlace(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 100_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(8));
+                keys.add(key);
+            }
+        }
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertEquals(1, files.length);
+        final List<ByteBuffer> probes = new ArrayList<>(keys.subList(0, 1000));
+        for (int i = 0; i < 1000; i++) {
+            probes.add(randomKey());
+        }
+        final BlockCache cache = new BlockCache(16 * 1024 * 1024);
+        for (final Config config : new Config[]{
+                MANUAL.withIoMode(IoMode.PREAD),
+                MANUAL.withIoMode(IoMode.PREAD).withBlockCache(cache)}) {
+            final FileTable table = new FileTable(files[0], 0, config);
+            try {
+                for (final ByteBuffer key : keys.subList(0, 1000)) {
+                    assertEquals(key, table.iterator(key).next().getKey());
+                }
+
+                // The blocks are searched in the buffer of the read or in the cache, only the iterator
+                // itself is allocated
+                final long allocated = allocatedPerCall(probes, table::iterator);
+                assertTrue(allocated < 64, "Allocated per lookup: " + allocated);
+            } finally {
+                table.close();
+            }
+        }
+        assertTrue(cache.getHitCount() > cache.getMissCount() * 10,
+                "Hits: " + cache.getHitCount() + ", misses: " + cache.getMissCount());
+    }
+
+    @Test
+    void concurrentLookups(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(100 + i % 300);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+        final List<ByteBuffer> keys = new ArrayList<>(entries.keySet());
+
+        // Blocks are evicted while other threads search them
+        final BlockCache cache = new BlockCache(256 * 1024);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withIoMode(IoMode.PREAD).withBlockCache(cache))) {
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        final ByteBuffer key = keys.get(ThreadLocalRandom.current().nextInt(keys.size() / 10));
+                        assertEquals(entries.get(key), dao.get(key));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+            assertTrue(cache.getEvictionCount() > 0);
+            assertTrue(cache.getSize() <= cache.getCapacity());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void reusedSlots(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(100 + i % 300);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        // The table is many times larger than the cache
+        final BlockCache cache = new BlockCache(256 * 1024);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withIoMode(IoMode.PREAD).withBlockCache(cache))) {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            final List<ByteBuffer> values = new ArrayList<>();
+            int i = 0;
+            for (final ByteBuffer key : entries.keySet()) {
+                if (i++ % 10 == 0) {
+                    // The second read hits the cache
+                    dao.get(key);
+                    keys.add(key);
+                    values.add(dao.get(key));
+                }
+            }
+
+            // Values read from cached blocks stay intact once the slots of the blocks are reused
+            final Iterator<Record> scan = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), scan.next().getValue());
+            }
+            assertTrue(cache.getEvictionCount() > 0);
+            assertTrue(cache.getSize() <= cache.getCapacity());
+            for (int j = 0; j < keys.size(); j++) {
+                assertEquals(entries.get(keys.get(j)), values.get(j));
+            }
+        }
+    }
+
+    @Test
+    void scanKeepsHotBlocks(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL)) {
+            for (int i = 0; i < 30_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(100));
+                keys.add(key);
+            }
+        }
+
+        // The table is a few times larger than the cache
+        final BlockCache cache = new BlockCache(1024 * 1024);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, MANUAL.withIoMode(IoMode.PREAD).withBlockCache(cache))) {
+            final List<ByteBuffer> hot = keys.subList(0, 20);
+            for (int round = 0; round < 2; round++) {
+                for (final ByteBuffer key : hot) {
+                    dao.get(key);
+                }
+            }
+
+            final Iterator<Record> scan = dao.iterator(ByteBuffer.allocate(0));
+            while (scan.hasNext()) {
+                scan.next();
+            }
+            assertTrue(cache.getEvictionCount() > 0);
+            assertTrue(cache.getSize() <= cache.getCapacity());
+
+            final long misses = cache.getMissCount();
+            for (final ByteBuffer key : hot) {
+                dao.get(key);
+            }
+            assertEquals(misses, cache.getMissCount());
+        }
+    }
+
+    // Bytes allocated by the thread per call once the code is warmed up
+    private static long allocatedPerCall(@NotNull final List<ByteBuffer> keys,
+                                         @NotNull final Lookup lookup) throws IOException {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 20; round++) {
+            final long before = threads.getThreadAllocatedBytes(thread);
+            for (final ByteBuffer key : keys) {
+                lookup.apply(key);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        return allocated / keys.size();
+    }
+
+    private interface Lookup {
+        void apply(@NotNull ByteBuffer key) throws IOException;
+    }
+
+    @NotNull
+    private static Set<Path> tables(@NotNull final File data) throws IOException {
+        final Set<Path> result = new HashSet<>();
+        for (final File file : data.listFiles((dir, name) -> name.endsWith(".dat"))) {
+            result.add(file.toPath().toRealPath());
+        }
+        return result;
+    }
+
+    private static boolean directSupported(final File dir) throws IOException {
+        final Path probe = new File(dir, "probe").toPath();
+        Files.write(probe, new byte[0]);
+        try {
+            final OpenOption direct = (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption")
+                    .getField("DIRECT").get(null);
+            FileChannel.open(probe, StandardOpenOption.READ, direct).close();
+            return true;
+        } catch (ReflectiveOperationException | IOException | UnsupportedOperationException e) {
+            return false;
+        } finally {
+            Files.delete(probe);
+        }
+    }
+}
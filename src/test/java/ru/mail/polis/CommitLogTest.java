@@ -0,0 +1,106 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery tests for {@link DAO} implementations.
+ * A crash is emulated by abandoning a storage without {@link DAO#close()}.
+ */
+class CommitLogTest extends TestBase {
+    @Test
+    void recoverUnflushed(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final ByteBuffer removed = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+        }
+
+        final DAO crashed = DAOFactory.create(data);
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            crashed.upsert(key, value);
+            entries.put(key, value);
+        }
+        crashed.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+
+        // Emulate a partially written record
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel ch = FileChannel.open(logs[0].toPath(), StandardOpenOption.APPEND)) {
+            ch.write(randomBuffer(100));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+
+        // The log is truncated after recovery
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void failedFlush(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+        final DAO failing = DAOFactory.create(data);
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            failing.upsert(key, value);
+            entries.put(key, value);
+        }
+        // Directories take the place of the tables to be written
+        for (int generation = 0; generation < 100; generation++) {
+            assertTrue(new File(data, "PRL" + generation + ".tmp").mkdir());
+        }
+        assertThrows(IOException.class, failing::close);
+        if (Files.isDirectory(FDS)) {
+            final Path dir = data.toPath().toRealPath();
+            assertEquals(0, openFiles(path -> path.startsWith(dir) && path.toString().endsWith(".log")));
+        }
+
+        // The memtable is replayed from its log, the directories are removed on open
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Compaction filter tests.
+ */
+class CompactionFilterTest extends TestBase {
+    @Test
+    void keepDropRewrite(@TempDir File data) throws IOException {
+        final ByteBuffer rewritten = randomValue();
+        // The first byte of a value tells what to do with it
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withCompactionFilter((key, value) -> {
+                    switch (Math.floorMod(value.get(value.position()), 3)) {
+                        case 0:
+                            return value;
+                        case 1:
+                            return null;
+                        default:
+                            return rewritten;
+                    }
+                });
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, 64 * 1024, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, 64 * 1024, config)) {
+            dao.compact();
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final ByteBuffer value = entry.getValue();
+                switch (Math.floorMod(value.get(value.position()), 3)) {
+                    case 0:
+                        assertEquals(value, dao.get(entry.getKey()));
+                        break;
+                    case 1:
+                        assertThrows(NoSuchElementException.class, () -> dao.get(entry.getKey()));
+                        break;
+                    default:
+                        assertEquals(rewritten, dao.get(entry.getKey()));
+                        break;
+                }
+            }
+        }
+
+        // Nothing older to hide, so no tombstones are left for the dropped records
+        final File[] tables = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")));
+        assertEquals(1, tables.length);
+        assertEquals(0, new FileTable(tables[0]).stats().getTombstoneCount());
+    }
+}
@@ -0,0 +1,234 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.IoMode;
+import ru.mail.polis.pranova.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Multi-threaded tests for {@link DAO} implementations.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 3_000;
+
+    @Test
+    void concurrentWritesReadsAndCompaction(@TempDir File data) throws Exception {
+        final Map<ByteBuffer, ByteBuffer> written = new ConcurrentHashMap<>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2 + 1);
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        written.put(key, value);
+                    }
+                    return null;
+                }));
+            }
+
+            final List<Future<?>> others = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                others.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        // Every acknowledged write is visible
+                        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                            break;
+                        }
+                        assertSorted(dao.iterator(randomKey()), 100);
+                    }
+                    return null;
+                }));
+            }
+            others.add(executor.submit(() -> {
+                while (writing.get()) {
+                    dao.compact();
+                    Thread.sleep(50);
+                }
+                return null;
+            }));
+
+            await(writers);
+            writing.set(false);
+            await(others);
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Everything is persisted
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : written.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertEquals(written.size(), countAll(dao));
+        }
+    }
+
+    @Test
+    void lastWriteWins(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            dao.upsert(key, randomValue());
+                        } else {
+                            dao.remove(key);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            await(writers);
+
+            // Single writer determines the outcome now
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void readAfterClose(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+        final Config config = Config.DEFAULT.withIoMode(IoMode.PREAD);
+        final DAO dao = new LSMDao(data, Long.MAX_VALUE, config);
+        dao.close();
+
+        // The tables are closed, so a read fails rather than waits for a newer set of tables
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> read = executor.submit(() -> dao.get(key));
+            final ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> read.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException, e.getCause().toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void readsScale(@TempDir File data) throws Exception {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        assumeTrue(cores >= THREADS, "Not enough cores to measure scalability");
+
+        final Collection<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+
+            final int rounds = 50;
+            // Warm up
+            readAll(dao, keys, 1, rounds);
+            final long single = readAll(dao, keys, 1, rounds * THREADS);
+            final long parallel = readAll(dao, keys, THREADS, rounds);
+
+            // The same amount of work spread across threads finishes notably faster
+            assertTrue(parallel * 2 < single * 3,
+                    "Single thread: " + single + "ns, " + THREADS + " threads: " + parallel + "ns");
+        }
+    }
+
+    private static long readAll(
+            final DAO dao,
+            final Collection<ByteBuffer> keys,
+            final int threads,
+            final int rounds) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final long start = System.nanoTime();
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                readers.add(executor.submit(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        for (final ByteBuffer key : keys) {
+                            dao.get(key);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            await(readers);
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertSorted(final Iterator<Record> iterator, final int limit) {
+        Record previous = null;
+        for (int i = 0; i < limit && iterator.hasNext(); i++) {
+            final Record record = iterator.next();
+            if (previous != null) {
+                assertTrue(previous.getKey().compareTo(record.getKey()) < 0);
+            }
+            previous = record;
+        }
+    }
+
+    private static int countAll(final DAO dao) throws IOException {
+        int count = 0;
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static void await(final List<Future<?>> futures) throws Exception {
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
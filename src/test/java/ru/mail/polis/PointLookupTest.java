@@ -0,0 +1,245 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.Compaction;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.RowCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Point lookup tests for {@link DAO} implementations.
+ */
+class PointLookupTest extends TestBase {
+    @Test
+    void newestValueWins(@TempDir File data) throws IOException {
+        // Explicit compaction rewrites the oldest table only, so it gets the newest generation
+        final CompactionStrategy oldest = new CompactionStrategy() {
+            @Override
+            public Compaction pick(@NotNull final List<FileTable> files) {
+                return null;
+            }
+
+            @NotNull
+            @Override
+            public Compaction major(@NotNull final List<FileTable> files) {
+                final FileTable table = Collections.min(files,
+                        Comparator.comparingLong(file -> file.stats().getMaxTimestamp()));
+                return new Compaction(Collections.singletonList(table));
+            }
+        };
+        final Config config = Config.DEFAULT.withCompactionStrategy(oldest);
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(removed, randomValue());
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key, value);
+            dao.remove(removed);
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.compact();
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void matchesModel(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final Random random = new Random(42);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(randomKey());
+        }
+        keys.sort(Comparator.naturalOrder());
+
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < 5; round++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                for (int i = 0; i < 300; i++) {
+                    final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                    final int op = random.nextInt(10);
+                    if (op < 6) {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    } else if (op < 9) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final int from = random.nextInt(keys.size());
+                        final int to = Math.min(keys.size(), from + random.nextInt(10) + 1);
+                        dao.removeRange(keys.get(from), to == keys.size() ? null : keys.get(to));
+                        expected.keySet().removeAll(keys.subList(from, to));
+                    }
+                }
+                if (round == 3) {
+                    dao.compact();
+                }
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (final ByteBuffer key : keys) {
+                final ByteBuffer value = expected.get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+
+            // Unordered, with duplicates and keys never written
+            final List<ByteBuffer> batch = new ArrayList<>(keys);
+            batch.addAll(keys.subList(0, 50));
+            batch.add(randomKey());
+            Collections.shuffle(batch, random);
+            final List<ByteBuffer> values = dao.multiGet(batch);
+            assertEquals(batch.size(), values.size());
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(expected.get(batch.get(i)), values.get(i));
+            }
+        }
+    }
+
+    @Test
+    void searchDoesNotAllocate(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 100_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(8));
+                keys.add(key);
+            }
+        }
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertEquals(1, files.length);
+        final FileTable table = new FileTable(files[0]);
+        final List<ByteBuffer> probes = new ArrayList<>(keys.subList(0, 1000));
+        for (int i = 0; i < 1000; i++) {
+            probes.add(randomKey());
+        }
+        for (final ByteBuffer key : keys.subList(0, 1000)) {
+            assertEquals(key, table.iterator(key).next().getKey());
+        }
+
+        // Only the iterator itself may be allocated, the search runs over the mapped bytes
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 20; round++) {
+            final long before = threads.getThreadAllocatedBytes(thread);
+            for (final ByteBuffer probe : probes) {
+                table.iterator(probe);
+            }
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        assertTrue(allocated / probes.size() < 64, "Allocated per lookup: " + allocated / probes.size());
+    }
+
+    @Test
+    void rowCacheFollowsWrites(@TempDir File data) throws Exception {
+        final ByteBuffer rewritten = randomValue();
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withRowCacheSize(1024 * 1024)
+                .withCompactionFilter((key, value) -> value.remaining() == 1 ? rewritten : value);
+        final ByteBuffer key = randomKey();
+        final ByteBuffer missing = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer small = ByteBuffer.wrap(new byte[]{42});
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key, small);
+        }
+
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            final RowCache cache = dao.getRowCache();
+            assertEquals(small, dao.get(key));
+            assertEquals(small, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            assertEquals(2, cache.getHitCount());
+
+            // Compaction rewrites the value by the filter
+            dao.compact();
+            assertEquals(rewritten, dao.get(key));
+
+            // Writes of the key are seen right away
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            dao.upsert(missing, value);
+            assertEquals(value, dao.get(missing));
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.removeRange(missing, null);
+            assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+
+            dao.upsert(key, value, Duration.ofMillis(50));
+            assertEquals(value, dao.get(key));
+            Thread.sleep(100);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void rowCacheKeepsHotKeys(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withRowCacheSize(512 * 1024);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+        }
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            final List<ByteBuffer> hot = keys.subList(0, 50);
+            for (int round = 0; round < 5; round++) {
+                for (final ByteBuffer key : hot) {
+                    dao.get(key);
+                }
+            }
+            // Each key read once doesn't replace the hot keys
+            for (final ByteBuffer key : keys) {
+                dao.get(key);
+            }
+            final RowCache cache = dao.getRowCache();
+            assertTrue(cache.getSize() <= cache.getCapacity());
+            final long misses = cache.getMissCount();
+            for (final ByteBuffer key : hot) {
+                dao.get(key);
+            }
+            assertEquals(misses, cache.getMissCount());
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.Compaction;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.TableStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Range deletion tests for {@link DAO} implementations.
+ */
+class RangeDeletionTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void memTable(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao);
+            dao.removeRange(key(100), key(200));
+            assertKeys(dao, 0, 100, 200, KEYS);
+            assertEquals(key(99), dao.decreasingIterator(key(199)).next().getKey());
+
+            // Writes after the removal are visible
+            dao.upsert(key(150), key(150));
+            assertEquals(key(150), dao.get(key(150)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(151)));
+
+            dao.removeRange(key(900), null);
+            final Iterator<Record> records = dao.iterator(key(899));
+            assertEquals(key(899), records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void persisted(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.removeRange(key(100), key(200));
+        }
+
+        // The removal is a single range tombstone whatever the number of keys
+        final FileTable removal = newestTable(data);
+        assertEquals(0, removal.rows());
+        assertEquals(1, removal.rangeTombstones().size());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertKeys(dao, 0, 100, 200, KEYS);
+        }
+    }
+
+    @Test
+    void recovered(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao);
+        }
+
+        // Abandoned without close, so the removal comes from the commit log
+        final DAO crashed = DAOFactory.create(data);
+        crashed.removeRange(key(100), key(200));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertKeys(dao, 0, 100, 200, KEYS);
+        }
+    }
+
+    @Test
+    void compacted(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            fill(dao);
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.removeRange(key(100), key(200));
+            dao.removeRange(key(150), key(300));
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.compact();
+            assertKeys(dao, 0, 100, 300, KEYS);
+        }
+
+        // Covered cells and range tombstones hiding nothing else are gone
+        final TableStats stats = newestTable(data).stats();
+        assertEquals(KEYS - 200, stats.getLiveCount());
+        assertEquals(0, stats.getTombstoneCount());
+        assertEquals(0, stats.getRangeTombstoneCount());
+    }
+
+    @Test
+    void partiallyCompacted(@TempDir File data) throws IOException {
+        // Explicit compaction leaves the largest table alone
+        final CompactionStrategy partial = new CompactionStrategy() {
+            @Override
+            public Compaction pick(@NotNull final List<FileTable> files) {
+                return null;
+            }
+
+            @NotNull
+            @Override
+            public Compaction major(@NotNull final List<FileTable> files) {
+                final List<FileTable> inputs = new ArrayList<>(files);
+                inputs.remove(Collections.max(inputs, Comparator.comparingInt(FileTable::rows)));
+                return new Compaction(inputs);
+            }
+        };
+        final Config config = Config.DEFAULT.withCompactionStrategy(partial);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            fill(dao);
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.removeRange(key(100), key(200));
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key(KEYS), key(KEYS));
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.compact();
+        }
+
+        // The range tombstone is carried over as it still hides the untouched table
+        final FileTable merged = newestTable(data);
+        assertEquals(1, merged.rows());
+        assertEquals(1, merged.rangeTombstones().size());
+        assertEquals(2, tables(data).size());
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            assertKeys(dao, 0, 100, 200, KEYS + 1);
+        }
+    }
+
+    private static void fill(final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(key(i), key(i));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        // Keys in the same order as the numbers
+        return ByteBuffer.wrap(String.format("%08d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Check that the keys are exactly [0, removedFrom) and [removedTo, end).
+     */
+    private static void assertKeys(final DAO dao,
+                                   final int from,
+                                   final int removedFrom,
+                                   final int removedTo,
+                                   final int end) throws IOException {
+        final Iterator<Record> records = dao.iterator(key(from));
+        for (int i = from; i < end; i++) {
+            if (i >= removedFrom && i < removedTo) {
+                continue;
+            }
+            assertEquals(key(i), records.next().getKey());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static List<File> tables(final File data) {
+        final List<File> result = new ArrayList<>(
+                List.of(Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))));
+        result.sort((a, b) -> Integer.compare(generation(a), generation(b)));
+        return result;
+    }
+
+    private static FileTable newestTable(final File data) throws IOException {
+        final List<File> files = tables(data);
+        return new FileTable(files.get(files.size() - 1));
+    }
+
+    private static int generation(final File file) {
+        return Integer.parseInt(file.getName().replaceAll("^PRL(\\d+).*$", "$1"));
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.RateLimiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background write throttling tests.
+ */
+class RateLimiterTest extends TestBase {
+    @Test
+    void throttlesFlush(@TempDir File data) throws IOException {
+        final long rate = 4 * 1024 * 1024;
+        final RateLimiter limiter = new RateLimiter(rate);
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withRateLimiter(limiter);
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomBuffer(2 * 1024 * 1024);
+
+        final long start = System.nanoTime();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key, value);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // Flushed 2MB at 4MB/s
+        assertTrue(limiter.getBytes() > value.remaining());
+        assertTrue(limiter.getThrottles() > 0);
+        assertTrue(limiter.getThrottledTime(TimeUnit.MILLISECONDS) >= 300);
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(300));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void rejectsBadRates() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(2, 1));
+    }
+}
@@ -0,0 +1,400 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.Cell;
+import ru.mail.polis.pranova.Codec;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.TableStats;
+import ru.mail.polis.pranova.TombstoneCompaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * On-disk table format tests.
+ */
+class TableFormatTest extends TestBase {
+    private static final long TIMEOUT_MILLIS = 30_000L;
+
+    @Test
+    void stats(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final List<ByteBuffer> removed = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(i + 1);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer key = randomKey();
+                dao.remove(key);
+                removed.add(key);
+            }
+        }
+
+        final TableStats stats = singleTable(data).stats();
+        assertEquals(100, stats.getLiveCount());
+        assertEquals(10, stats.getTombstoneCount());
+        assertEquals(100 * 101 / 2, stats.getValueBytes());
+        assertTrue(stats.getMinTimestamp() <= stats.getMaxTimestamp());
+        removed.addAll(entries.keySet());
+        removed.sort(ByteBuffer::compareTo);
+        assertEquals(removed.get(0), stats.getMinKey());
+        assertEquals(removed.get(removed.size() - 1), stats.getMaxKey());
+    }
+
+    @Test
+    void legacyReadable(@TempDir File data) throws IOException {
+        final ByteBuffer alive = ByteBuffer.wrap(new byte[]{1});
+        final ByteBuffer dead = ByteBuffer.wrap(new byte[]{2});
+        final ByteBuffer value = randomValue();
+
+        // Cells, offsets and the number of rows, no footer
+        final ByteBuffer legacy = ByteBuffer.allocate(2 * 1024);
+        legacy.putInt(alive.remaining()).put(alive.duplicate()).putLong(1L);
+        legacy.putInt(value.remaining()).put(value.duplicate());
+        final int second = legacy.position();
+        legacy.putInt(dead.remaining()).put(dead.duplicate()).putLong(-2L);
+        legacy.putLong(0L).putLong(second).putLong(2L);
+        legacy.flip();
+        try (FileChannel fc = FileChannel.open(new File(data, "PRL1.dat").toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            fc.write(legacy);
+        }
+
+        final TableStats stats = singleTable(data).stats();
+        assertEquals(1, stats.getLiveCount());
+        assertEquals(1, stats.getTombstoneCount());
+        assertEquals(2L, stats.getMaxTimestamp());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(alive));
+            assertThrows(NoSuchElementException.class, () -> dao.get(dead));
+        }
+    }
+
+    @Test
+    void tombstoneTrigger(@TempDir File data) throws Exception {
+        final Config config = Config.DEFAULT.withCompactionStrategy(
+                new TombstoneCompaction(CompactionStrategy.MANUAL, 0.5));
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+        }
+
+        // The second table is mostly tombstones hiding the first one
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (final ByteBuffer key : keys.subList(0, 900)) {
+                dao.remove(key);
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (BackgroundCompactionTest.tables(data) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            for (final ByteBuffer key : keys.subList(900, 1000)) {
+                assertTrue(dao.get(key).hasRemaining());
+            }
+        }
+
+        final TableStats stats = singleTable(data).stats();
+        assertEquals(100, stats.getLiveCount());
+        assertEquals(0, stats.getTombstoneCount());
+    }
+
+    @Test
+    void bloomFilter(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+        }
+
+        final FileTable table = singleTable(data);
+        for (final ByteBuffer key : keys) {
+            assertTrue(table.mightContain(key));
+        }
+        // 10 bits per key give about 1% false positives
+        int falsePositives = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (table.mightContain(randomKey())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "False positives: " + falsePositives);
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (final ByteBuffer key : keys.subList(0, 100)) {
+                assertTrue(dao.get(key).hasRemaining());
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+        }
+    }
+
+    @Test
+    void withoutBloomFilter(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withBloomBitsPerKey(0);
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.upsert(key, value);
+        }
+
+        assertTrue(singleTable(data).mightContain(randomKey()));
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+        }
+    }
+
+    @Test
+    void blocks(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT
+                .withCompactionStrategy(CompactionStrategy.MANUAL)
+                .withBlockSize(512);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 2000; i++) {
+                final ByteBuffer key = randomKey();
+                // Some cells are larger than a block
+                final ByteBuffer value = randomBuffer(i % 100 == 0 ? 2000 : 10);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        final List<ByteBuffer> keys = new ArrayList<>(entries.keySet());
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(entries.get(key), dao.get(key));
+            }
+            assertEquals(new ArrayList<>(entries.values()), dao.multiGet(keys));
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+
+            final ByteBuffer middle = keys.get(keys.size() / 2);
+            final Iterator<Record> ascending = dao.iterator(middle);
+            for (final ByteBuffer key : entries.tailMap(middle).keySet()) {
+                assertEquals(key, ascending.next().getKey());
+            }
+            assertFalse(ascending.hasNext());
+            final Iterator<Record> descending = dao.decreasingIterator(middle);
+            for (final ByteBuffer key : entries.headMap(middle, true).descendingKeySet()) {
+                assertEquals(key, descending.next().getKey());
+            }
+            assertFalse(descending.hasNext());
+        }
+    }
+
+    @Test
+    void compressed(@TempDir File data) throws IOException {
+        final Config plain = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final Config deflate = plain.withCodec(Codec.DEFLATE);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final long[] sizes = new long[2];
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, round == 0 ? plain : deflate)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = ByteBuffer.wrap(
+                            ("{\"id\":" + i + ",\"name\":\"record\",\"tags\":[\"a\",\"b\"]}").getBytes(StandardCharsets.UTF_8));
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+            sizes[round] = tablesSize(data) - sizes[0];
+        }
+        assertTrue(sizes[1] * 2 < sizes[0], "Sizes: " + sizes[0] + ", " + sizes[1]);
+
+        // Tables of both codecs are read whatever the codec of new tables is
+        for (final Config config : new Config[]{plain, deflate}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                for (final ByteBuffer key : entries.keySet()) {
+                    assertEquals(entries.get(key), dao.get(key));
+                }
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final ByteBuffer key : entries.keySet()) {
+                    assertEquals(key, records.next().getKey());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, deflate)) {
+            dao.compact();
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, plain)) {
+            assertEquals(new ArrayList<>(entries.values()), dao.multiGet(new ArrayList<>(entries.keySet())));
+        }
+    }
+
+    @Test
+    void prefixCompressedKeys(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 2000; i++) {
+            final String key = String.format("tenant-%02d:region-%d:entity:%08d", i % 7, i % 3, i);
+            entries.put(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), randomBuffer(i % 10 + 1));
+        }
+        final ByteBuffer tombstone = entries.firstKey();
+        entries.remove(tombstone);
+
+        final long[] sizes = new long[2];
+        final Config[] configs = {config.withRestartInterval(1), config};
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, configs[round])) {
+                for (final ByteBuffer key : entries.keySet()) {
+                    dao.upsert(key, entries.get(key));
+                }
+                dao.remove(tombstone);
+            }
+            sizes[round] = tablesSize(data) - sizes[0];
+        }
+        assertTrue(sizes[1] * 3 < sizes[0] * 2, "Sizes: " + sizes[0] + ", " + sizes[1]);
+
+        // Merge both tables into deflated blocks of prefix-compressed keys
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config.withCodec(Codec.DEFLATE))) {
+            dao.compact();
+        }
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (final ByteBuffer key : entries.keySet()) {
+                assertEquals(entries.get(key), dao.get(key));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(tombstone));
+            final ByteBuffer missing = ByteBuffer.wrap("tenant-03:region-".getBytes(StandardCharsets.UTF_8));
+            assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+
+            final Iterator<Record> ascending = dao.iterator(missing);
+            for (final ByteBuffer key : entries.tailMap(missing).keySet()) {
+                assertEquals(key, ascending.next().getKey());
+            }
+            assertFalse(ascending.hasNext());
+            final Iterator<Record> descending = dao.decreasingIterator(missing);
+            for (final ByteBuffer key : entries.headMap(missing, false).descendingKeySet()) {
+                assertEquals(key, descending.next().getKey());
+            }
+            assertFalse(descending.hasNext());
+        }
+    }
+
+    @Test
+    void writtenInChunks(@TempDir File data) throws IOException {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 300; i++) {
+                final ByteBuffer key = randomKey();
+                // Cells cross the boundaries of the write buffer, some are larger than it
+                final ByteBuffer value = randomBuffer(i % 50 == 0 ? 1536 * 1024 : 1000 + i * 13);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+        for (final Config reopen : new Config[]{config, config.withCodec(Codec.DEFLATE)}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, reopen)) {
+                dao.compact();
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void segments(@TempDir File data) throws IOException {
+        final Config plain = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (final Config config : new Config[]{plain, plain.withCodec(Codec.DEFLATE)}) {
+            try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+                for (int i = 0; i < 2000; i++) {
+                    final ByteBuffer key = randomKey();
+                    // Some blocks are larger than a segment
+                    final ByteBuffer value = randomBuffer(i % 100 == 0 ? 20_000 : 100);
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            final FileTable whole = new FileTable(file);
+            // Every few blocks are mapped apart
+            final FileTable segmented = new FileTable(file, 0, Codec.NONE, 16 * 1024);
+            assertEquals(whole.sizeInBytes(), segmented.sizeInBytes());
+            final Iterator<Cell> expected = whole.iterator(ByteBuffer.allocate(0));
+            final Iterator<Cell> actual = segmented.iterator(ByteBuffer.allocate(0));
+            int count = 0;
+            while (expected.hasNext()) {
+                final Cell cell = expected.next();
+                assertEquals(cell.getKey(), actual.next().getKey());
+                assertEquals(entries.get(cell.getKey()), cell.getValue().getData());
+                count++;
+            }
+            assertFalse(actual.hasNext());
+            assertEquals(2000, count);
+
+            final List<ByteBuffer> keys = new ArrayList<>();
+            segmented.iterator(ByteBuffer.allocate(0)).forEachRemaining(cell -> keys.add(cell.getKey()));
+            for (final ByteBuffer key : keys) {
+                assertEquals(entries.get(key), segmented.iterator(key).next().getValue().getData());
+            }
+            final Iterator<Cell> descending = segmented.decreasingIterator(keys.get(keys.size() - 1));
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                assertEquals(keys.get(i), descending.next().getKey());
+            }
+            assertFalse(descending.hasNext());
+        }
+    }
+
+    private static long tablesSize(final File data) {
+        long result = 0;
+        for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")))) {
+            result += file.length();
+        }
+        return result;
+    }
+
+    private static FileTable singleTable(final File data) throws IOException {
+        final File[] files = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")));
+        assertEquals(1, files.length);
+        return new FileTable(files[0]);
+    }
+}
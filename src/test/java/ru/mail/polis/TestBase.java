@@ -18,8 +18,14 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
 
 /**
  * Contains utility methods for unit tests.
@@ -29,6 +35,8 @@ import java.util.concurrent.ThreadLocalRandom;
 abstract class TestBase {
     static final int KEY_LENGTH = 16;
     private static final int VALUE_LENGTH = 1024;
+    // Open files of the process, Linux only
+    static final Path FDS = Paths.get("/proc/self/fd");
 
     @NotNull
     static ByteBuffer randomBuffer(final int length) {
@@ -58,4 +66,27 @@ abstract class TestBase {
         result.rewind();
         return result;
     }
+
+    /**
+     * Count the channels open to the files, deleted files included.
+     *
+     * @param files real paths of the files to count
+     * @return number of open channels
+     */
+    static int openFiles(@NotNull final Predicate<Path> files) throws IOException {
+        int result = 0;
+        try (DirectoryStream<Path> fds = Files.newDirectoryStream(FDS)) {
+            for (final Path fd : fds) {
+                try {
+                    final String target = Files.readSymbolicLink(fd).toString();
+                    if (files.test(Paths.get(target.replace(" (deleted)", "")))) {
+                        result++;
+                    }
+                } catch (IOException e) {
+                    // Closed while listed
+                }
+            }
+        }
+        return result;
+    }
 }
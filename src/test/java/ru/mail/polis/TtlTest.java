@@ -0,0 +1,110 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pranova.CompactionStrategy;
+import ru.mail.polis.pranova.Config;
+import ru.mail.polis.pranova.FileTable;
+import ru.mail.polis.pranova.LSMDao;
+import ru.mail.polis.pranova.TableStats;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Time to live tests for {@link DAO} implementations.
+ */
+class TtlTest extends TestBase {
+    private static final Duration SHORT = Duration.ofMillis(200);
+    private static final Duration LONG = Duration.ofHours(1);
+
+    @Test
+    void expires(@TempDir File data) throws Exception {
+        final ByteBuffer expiring = randomKey();
+        final ByteBuffer lasting = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE)) {
+            dao.upsert(expiring, value, SHORT);
+            dao.upsert(lasting, value, LONG);
+            assertEquals(value, dao.get(expiring));
+
+            Thread.sleep(SHORT.toMillis() * 2);
+            assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+            assertEquals(value, dao.get(lasting));
+        }
+
+        // Expiry survives flush
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(lasting, records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void expiresAfterRecovery(@TempDir File data) throws Exception {
+        final ByteBuffer expiring = randomKey();
+        final ByteBuffer lasting = randomKey();
+        final ByteBuffer value = randomValue();
+
+        // Abandoned without close, so records come from the commit log
+        final LSMDao crashed = new LSMDao(data, Long.MAX_VALUE);
+        crashed.upsert(expiring, value, SHORT);
+        crashed.upsert(lasting, value, LONG);
+
+        Thread.sleep(SHORT.toMillis() * 2);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+            assertEquals(value, dao.get(lasting));
+        }
+    }
+
+    @Test
+    void hidesOlderValue(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKey();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE)) {
+            dao.upsert(key, randomValue(), SHORT);
+        }
+
+        Thread.sleep(SHORT.toMillis() * 2);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void droppedByCompaction(@TempDir File data) throws Exception {
+        final Config config = Config.DEFAULT.withCompactionStrategy(CompactionStrategy.MANUAL);
+        try (LSMDao dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomValue(), i % 2 == 0 ? SHORT : LONG);
+            }
+        }
+
+        Thread.sleep(SHORT.toMillis() * 2);
+        try (DAO dao = new LSMDao(data, Long.MAX_VALUE, config)) {
+            dao.compact();
+        }
+
+        final File[] tables = Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".dat")));
+        assertEquals(1, tables.length);
+        final TableStats stats = new FileTable(tables[0]).stats();
+        assertEquals(50, stats.getLiveCount());
+        assertEquals(50, stats.getExpiringCount());
+        assertEquals(0, stats.getTombstoneCount());
+    }
+}